@@ -0,0 +1,117 @@
+package org.example.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic inputs for the benchmarks, generated deterministically from a fixed seed.
+ */
+public enum Corpus {
+
+    // Every byte value equally likely, incompressible
+    UNIFORM {
+        @Override
+        byte[] generate(int size, SplittableRandom random) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte)random.nextInt(256);
+            }
+            return data;
+        }
+    },
+
+    // Words drawn from a Zipf-distributed vocabulary, separated by spaces and line breaks
+    ZIPF {
+        @Override
+        byte[] generate(int size, SplittableRandom random) {
+            String[] vocabulary = new String[4096];
+            for (int w = 0; w < vocabulary.length; w++) {
+                StringBuilder word = new StringBuilder();
+                for (int len = 2 + random.nextInt(8); len > 0; len--) {
+                    word.append((char)('a' + random.nextInt(26)));
+                }
+                vocabulary[w] = word.toString();
+            }
+            double[] cumulative = zipf(vocabulary.length);
+            byte[] data = new byte[size];
+            int position = 0;
+            while (position < size) {
+                byte[] word = vocabulary[pick(cumulative, random.nextDouble())].getBytes(StandardCharsets.US_ASCII);
+                for (int i = 0; i < word.length && position < size; i++) {
+                    data[position++] = word[i];
+                }
+                if (position < size) {
+                    data[position++] = (byte)(random.nextInt(12) == 0 ? '\n' : ' ');
+                }
+            }
+            return data;
+        }
+    },
+
+    // Long runs of few distinct bytes, like padded telemetry dumps
+    REPETITIVE {
+        @Override
+        byte[] generate(int size, SplittableRandom random) {
+            byte[] data = new byte[size];
+            int position = 0;
+            while (position < size) {
+                byte value = (byte)random.nextInt(8);
+                int run = 1 + random.nextInt(random.nextInt(10) == 0 ? 4096 : 64);
+                for (int i = 0; i < run && position < size; i++) {
+                    data[position++] = value;
+                }
+            }
+            return data;
+        }
+    },
+
+    // UTF-8 text over thousands of code points (CJK range), so all byte values above 0x80 occur
+    LARGE_ALPHABET {
+        @Override
+        byte[] generate(int size, SplittableRandom random) {
+            StringBuilder text = new StringBuilder(size / 2);
+            while (text.length() < size / 3) {
+                text.appendCodePoint(0x4E00 + random.nextInt(0x5000));
+            }
+            byte[] encoded = text.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = encoded[i % encoded.length];
+            }
+            return data;
+        }
+    };
+
+    abstract byte[] generate(int size, SplittableRandom random);
+
+    public byte[] generate(int size) {
+        return generate(size, new SplittableRandom(42));
+    }
+
+    private static double[] zipf(int n) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / (k + 1);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double u) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
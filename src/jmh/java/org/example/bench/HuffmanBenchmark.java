@@ -0,0 +1,85 @@
+package org.example.bench;
+
+import org.example.CodingListener;
+import org.example.FrequencyCounter;
+import org.example.HuffmanManager;
+import org.example.MappedSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Huffman throughput per phase. Every invocation processes CORPUS_MB megabytes and is counted
+ * as that many operations, so the reported ops/s are MB/s. Run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HuffmanBenchmark {
+
+    static final int CORPUS_MB = 16;
+
+    @Param({"UNIFORM", "ZIPF", "REPETITIVE", "LARGE_ALPHABET"})
+    public Corpus corpus;
+
+    @Param({"1"})
+    public int workers;
+
+    private ForkJoinPool pool;
+    private MappedSource source;
+    private HuffmanManager manager;
+    private Path encodedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        pool = new ForkJoinPool(workers);
+        source = MappedSource.wrap(corpus.generate(CORPUS_MB << 20));
+        manager = new HuffmanManager(source, pool, workers, CodingListener.NONE);
+        manager.generateHuffmanCode();
+
+        encodedFile = Files.createTempFile("huffman-bench", ".enc");
+        try (OutputStream out = Files.newOutputStream(encodedFile)) {
+            manager.encodeToFile(out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.deleteIfExists(encodedFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_MB)
+    public long[] frequencies() throws IOException {
+        return FrequencyCounter.count(source, pool, workers);
+    }
+
+    // Tree and canonical code construction only; the frequencies are counted once in setUp
+    @Benchmark
+    public HuffmanManager codeConstruction() {
+        manager.generateHuffmanCode();
+        return manager;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_MB)
+    public long encode() throws IOException {
+        manager.encodeToFile(OutputStream.nullOutputStream());
+        return manager.getEncodedFileSize();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_MB)
+    public void decode() throws IOException {
+        HuffmanManager.decodeFile(encodedFile, OutputStream.nullOutputStream(), pool, workers, CodingListener.NONE);
+    }
+}
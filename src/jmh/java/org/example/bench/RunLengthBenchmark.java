@@ -0,0 +1,72 @@
+package org.example.bench;
+
+import org.example.CodingListener;
+import org.example.MappedSource;
+import org.example.RLManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run-length throughput. Every invocation processes CORPUS_MB megabytes and is counted as that
+ * many operations, so the reported ops/s are MB/s. Run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunLengthBenchmark {
+
+    static final int CORPUS_MB = 16;
+
+    @Param({"UNIFORM", "ZIPF", "REPETITIVE", "LARGE_ALPHABET"})
+    public Corpus corpus;
+
+    private MappedSource source;
+    private RLManager manager;
+    private Path encodedFile;
+    private WritableByteChannel sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = MappedSource.wrap(corpus.generate(CORPUS_MB << 20));
+        sink = Channels.newChannel(OutputStream.nullOutputStream());
+        manager = new RLManager(source, CodingListener.NONE);
+
+        encodedFile = Files.createTempFile("runlength-bench", ".enc");
+        try (OutputStream out = Files.newOutputStream(encodedFile)) {
+            manager.encode(out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(encodedFile);
+    }
+
+    // Run scan and token output
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_MB)
+    public long encode() throws IOException {
+        manager.encode(OutputStream.nullOutputStream());
+        return manager.getEncodedFileSize();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_MB)
+    public void decode() throws IOException {
+        try (FileChannel in = FileChannel.open(encodedFile, StandardOpenOption.READ)) {
+            RLManager.decode(in, sink, CodingListener.NONE);
+        }
+    }
+}
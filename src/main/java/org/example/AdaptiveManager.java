@@ -0,0 +1,290 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
+
+/**
+ * Single-output mode that picks the cheapest method for every block: stored, Huffman (with a
+ * table of its own), run-length, or run-length tokens Huffman-coded. The costs come from the
+ * block's byte histogram: the Huffman size is the table plus the average code word length times
+ * the byte count, and the run-length size and token histogram follow from the run and literal
+ * lengths, so no method is run just to be measured. Only the winner is coded and written.
+ *
+ * Layout: header (magic, version, original length, block size), the blocks (one method byte,
+ * then the payload), the block index and footer with the checksums (see BlockIndex).
+ */
+public class AdaptiveManager {
+
+    static final String CODEC_NAME = "ADAPTIVE";
+    static final int MAGIC = 0x4144; // "AD"
+    static final int VERSION = 3;
+    static final int HEADER_BYTES = 15;
+    static final int BLOCK_SIZE = HuffmanManager.BLOCK_SIZE;
+
+    static final int STORED = 0;
+    static final int HUFFMAN = 1;
+    static final int RUN_LENGTH = 2;
+    static final int RUN_LENGTH_HUFFMAN = 3;
+    static final String[] METHOD_NAMES = { "stored", "Huffman", "run-length", "run-length + Huffman" };
+
+    private final MappedSource source;
+    private final ExecutorService pool;
+    private final int workers;
+    private final CodingListener listener;
+    private final long[] methodBlocks = new long[METHOD_NAMES.length];
+    private final long[] methodBytes = new long[METHOD_NAMES.length];
+    private long encodedFileSize;
+
+    public AdaptiveManager(MappedSource source, ExecutorService pool, int workers, CodingListener listener) {
+        this.source = source;
+        this.pool = pool;
+        this.workers = workers;
+        this.listener = listener;
+    }
+
+    public void encodeToFile(OutputStream out) throws IOException {
+        long originalLength = source.length();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(HEADER_BYTES);
+        BitWriter writer = new BitWriter(headerBytes);
+        writer.writeBits(MAGIC, 16);
+        writer.writeBits(VERSION, 8);
+        writer.writeBits(originalLength, 64);
+        writer.writeBits(BLOCK_SIZE, 32);
+        writer.flush();
+        byte[] header = headerBytes.toByteArray();
+        out.write(header);
+
+        listener.onEncodeStart(CODEC_NAME, originalLength, null);
+
+        int blockCount = BlockIndex.blockCount(originalLength, BLOCK_SIZE);
+        long[] blockOffsets = new long[blockCount];
+        int[] blockLengths = new int[blockCount];
+        int[] blockChecksums = new int[blockCount];
+        CRC32C content = new CRC32C();
+        long[] position = { HEADER_BYTES };
+
+        BlockPipeline.run(pool, blockCount, 2 * workers,
+                block -> encodeBlock(source.block(block, BLOCK_SIZE)),
+                (block, encoded) -> {
+                    out.write(encoded);
+                    blockOffsets[block] = position[0];
+                    blockLengths[block] = encoded.length;
+                    blockChecksums[block] = BlockIndex.checksum(encoded, 0, encoded.length);
+                    position[0] += encoded.length;
+                    methodBlocks[encoded[0]]++;
+                    methodBytes[encoded[0]] += encoded.length;
+                    ByteBuffer data = source.block(block, BLOCK_SIZE);
+                    listener.onBlock(block, data.limit(), encoded.length);
+                    content.update(data);
+                });
+
+        BlockIndex.write(out, blockOffsets, blockLengths, blockChecksums, position[0],
+                BlockIndex.checksum(header, 0, header.length), (int)content.getValue());
+
+        this.encodedFileSize = (position[0] + BlockIndex.sizeInBytes(blockCount)) * 8;
+        listener.onFinish(CODEC_NAME);
+    }
+
+    private byte[] encodeBlock(ByteBuffer block) throws IOException {
+        long[] histogram = new long[HuffmanManager.ALPHABET_SIZE];
+        long[] tokenHistogram = new long[HuffmanManager.ALPHABET_SIZE];
+        long tokenBytes = countBytes(block, histogram, tokenHistogram);
+
+        int method = STORED;
+        long bestBytes = block.limit();
+        // Only lengths and code words: the encoder never needs the decode tables of a HuffmanCode
+        int[] lengths = HuffmanManager.codeLengths(histogram, CodingListener.NONE);
+        long huffmanBytes = huffmanBytes(histogram, lengths);
+        if (huffmanBytes < bestBytes) {
+            method = HUFFMAN;
+            bestBytes = huffmanBytes;
+        }
+
+        if (tokenBytes < bestBytes) {
+            method = RUN_LENGTH;
+            bestBytes = tokenBytes;
+        }
+        int[] tokenLengths = HuffmanManager.codeLengths(tokenHistogram, CodingListener.NONE);
+        long tokenHuffmanBytes = 4 + huffmanBytes(tokenHistogram, tokenLengths);
+        if (tokenHuffmanBytes < bestBytes) {
+            method = RUN_LENGTH_HUFFMAN;
+            bestBytes = tokenHuffmanBytes;
+        }
+        byte[] tokens = method >= RUN_LENGTH ? RLManager.encodeBlock(block) : null;
+
+        ByteBuffer output = ByteBuffer.allocate((int)bestBytes + 1);
+        output.put((byte)method);
+        switch (method) {
+            case STORED:
+                output.put(block.duplicate().position(0));
+                break;
+            case HUFFMAN:
+                writeHuffman(block, lengths, output);
+                break;
+            case RUN_LENGTH:
+                output.put(tokens);
+                break;
+            default:
+                output.putInt(tokens.length);
+                writeHuffman(ByteBuffer.wrap(tokens), tokenLengths, output);
+                break;
+        }
+        return output.array();
+    }
+
+    /*
+     * Byte histogram of the block, plus the byte histogram of the tokens RLManager.encodeBlock
+     * would write for it; returns their size. Runs of MIN_RUN or more become a token, shorter ones
+     * join the pending literal, which is split every MAX_LITERAL bytes.
+     */
+    private static long countBytes(ByteBuffer data, long[] histogram, long[] tokenHistogram) {
+        long tokenBytes = 0;
+        int literal = 0;
+        for (int start = 0, limit = data.limit(); start < limit; ) {
+            int current = data.get(start) & 0xFF;
+            int end = start + 1;
+            while (end < limit && (data.get(end) & 0xFF) == current) {
+                end++;
+            }
+            int run = end - start;
+            histogram[current] += run;
+            if (run >= RLManager.MIN_RUN) {
+                if (literal > 0) {
+                    tokenBytes += literal + countVarint(((long)(literal - 1) << 1) | 1, tokenHistogram);
+                    literal = 0;
+                }
+                tokenBytes += 1 + countVarint((long)(run - RLManager.MIN_RUN) << 1, tokenHistogram);
+                // The run is one byte in the tokens; literal bytes are added from histogram below
+                tokenHistogram[current] += 1 - run;
+            } else {
+                literal += run;
+                while (literal > RLManager.MAX_LITERAL) {
+                    tokenBytes += RLManager.MAX_LITERAL + countVarint(((long)(RLManager.MAX_LITERAL - 1) << 1) | 1, tokenHistogram);
+                    literal -= RLManager.MAX_LITERAL;
+                }
+            }
+            start = end;
+        }
+        if (literal > 0) {
+            tokenBytes += literal + countVarint(((long)(literal - 1) << 1) | 1, tokenHistogram);
+        }
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            tokenHistogram[symbol] += histogram[symbol];
+        }
+        return tokenBytes;
+    }
+
+    // Adds the LEB128 bytes of value to the histogram and returns how many there are
+    private static int countVarint(long value, long[] histogram) {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            histogram[(int)(value & 0x7F) | 0x80]++;
+            value >>>= 7;
+            bytes++;
+        }
+        histogram[(int)value]++;
+        return bytes;
+    }
+
+    // Table plus the average code word length times the byte count, rounded up to whole bytes
+    private static long huffmanBytes(long[] histogram, int[] lengths) {
+        long bits = HuffmanCode.tableBits(lengths);
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            bits += histogram[symbol] * lengths[symbol];
+        }
+        return (bits + 7) / 8;
+    }
+
+    private static void writeHuffman(ByteBuffer data, int[] lengths, ByteBuffer output) throws IOException {
+        BitWriter writer = new BitWriter(output);
+        HuffmanCode.writeTable(lengths, writer);
+        HuffmanManager.encodeBytes(data, HuffmanCode.canonicalCodes(lengths), lengths, writer);
+        writer.flush();
+    }
+
+    // Returns the number of decoded bytes
+    public static long decodeFile(Path encodedFile, OutputStream out, ExecutorService pool, int workers,
+                                  CodingListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(encodedFile, StandardOpenOption.READ)) {
+            BlockIndex index = readIndex(channel);
+
+            listener.onDecodeStart(CODEC_NAME, index.originalLength(), null);
+
+            CRC32C content = new CRC32C();
+            BlockPipeline.run(pool, index.blockCount(), 2 * workers,
+                    block -> decodeBlock(index.readBlock(channel, block), index.decodedLength(block)),
+                    (block, decoded) -> {
+                        out.write(decoded);
+                        content.update(decoded, 0, decoded.length);
+                        listener.onBlock(block, index.compressedLength(block), decoded.length);
+                    });
+            index.checkContent(content);
+            listener.onFinish(CODEC_NAME);
+            return index.originalLength();
+        }
+    }
+
+    // Checks the header and reads the block index
+    static BlockIndex readIndex(FileChannel channel) throws IOException {
+        ByteBuffer header = BlockIndex.readFully(channel, 0, HEADER_BYTES);
+        if ((header.getShort() & 0xFFFF) != MAGIC) {
+            throw new IOException("not an adaptive encoded file (bad magic)");
+        }
+        int version = header.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("unsupported adaptive file version: " + version);
+        }
+        long originalLength = header.getLong();
+        int blockSize = header.getInt();
+        return BlockIndex.read(channel, originalLength, blockSize, "adaptive");
+    }
+
+    static byte[] decodeBlock(byte[] encoded, int decodedLength) throws IOException {
+        if (encoded.length == 0) {
+            throw new IOException("corrupted adaptive file: empty block");
+        }
+        switch (encoded[0]) {
+            case STORED:
+                if (encoded.length - 1 != decodedLength) {
+                    throw new IOException("corrupted adaptive file: stored block of " + (encoded.length - 1) + " bytes");
+                }
+                return Arrays.copyOfRange(encoded, 1, encoded.length);
+            case HUFFMAN: {
+                BitReader reader = new BitReader(encoded, 1, encoded.length - 1);
+                HuffmanCode code = HuffmanCode.readTable(reader, HuffmanManager.ALPHABET_SIZE);
+                return HuffmanManager.decodeBlock(code, reader, decodedLength);
+            }
+            case RUN_LENGTH:
+                return RLManager.decodeBlock(encoded, 1, encoded.length - 1, decodedLength);
+            case RUN_LENGTH_HUFFMAN: {
+                int tokenLength = ByteBuffer.wrap(encoded, 1, 4).getInt();
+                BitReader reader = new BitReader(encoded, 5, encoded.length - 5);
+                HuffmanCode code = HuffmanCode.readTable(reader, HuffmanManager.ALPHABET_SIZE);
+                byte[] tokens = HuffmanManager.decodeBlock(code, reader, tokenLength);
+                return RLManager.decodeBlock(tokens, 0, tokens.length, decodedLength);
+            }
+            default:
+                throw new IOException("corrupted adaptive file: unknown block method " + encoded[0]);
+        }
+    }
+
+    public long getEncodedFileSize() {
+        return encodedFileSize;
+    }
+
+    public long getMethodBlocks(int method) {
+        return methodBlocks[method];
+    }
+
+    public long getMethodBytes(int method) {
+        return methodBytes[method];
+    }
+}
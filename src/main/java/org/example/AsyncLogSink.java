@@ -0,0 +1,112 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes log lines on a background thread through a buffered writer, so the coding threads
+ * only pay for a queue offer. The queue is bounded: a producer that outruns the console blocks
+ * instead of growing the heap. If writing fails, the error is reported once on stderr and later
+ * lines are dropped, so producers and flush() never wait on a dead writer.
+ */
+public class AsyncLogSink implements Closeable {
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    // Holds log lines (String) and flush markers (CountDownLatch)
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BufferedWriter writer;
+    private final Thread worker;
+    private volatile boolean failed;
+
+    public AsyncLogSink(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+        this.worker = new Thread(this::drain, "log-sink");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void log(String line) {
+        if (!failed) {
+            enqueue(line);
+        }
+    }
+
+    private void enqueue(Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                if (!failed) {
+                    write(batch);
+                }
+                // Released after a failure too: the lines before them are written or dropped
+                for (Object item : batch) {
+                    if (item instanceof CountDownLatch) {
+                        ((CountDownLatch)item).countDown();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(List<Object> batch) {
+        try {
+            boolean flushRequested = false;
+            for (Object item : batch) {
+                if (item instanceof String) {
+                    writer.write((String)item);
+                    writer.newLine();
+                } else {
+                    flushRequested = true;
+                }
+            }
+            if (flushRequested || queue.isEmpty()) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("[LOG] --- ERROR: could not write the log, later lines are dropped: " + e.getMessage());
+        }
+    }
+
+    // Waits until every line queued so far has been written out
+    public void flush() {
+        if (failed) {
+            return;
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        enqueue(written);
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        worker.interrupt();
+    }
+}
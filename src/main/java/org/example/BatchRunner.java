@@ -0,0 +1,177 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Batch mode: encodes (or decodes) every file of a directory, a glob or a list read from stdin in
+ * one JVM. Files run on a fixed pool of `jobs` threads behind a bounded queue; when the queue is
+ * full the thread listing the files runs the next one itself, so a list of any length never
+ * buffers more than a few pending files. Huffman blocks of all files share one worker pool.
+ */
+public class BatchRunner {
+
+    private static final String HUFFMAN_SUFFIX = "-HC.enc";
+    private static final String RUN_LENGTH_SUFFIX = "-RL.enc";
+    private static final String ADAPTIVE_SUFFIX = "-AD.enc";
+    private static final String STREAM_SUFFIX = "-HS.enc";
+    private static final String DECODED_SUFFIX = "-decoded.txt";
+
+    private final boolean decode;
+    private final boolean adaptive;
+    private final boolean verify;
+    private final int jobs;
+    private final int workers;
+    private final AsyncLogSink logSink;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private long elapsedNanos;
+
+    public BatchRunner(boolean decode, boolean adaptive, boolean verify, int jobs, int workers, AsyncLogSink logSink) {
+        this.decode = decode;
+        this.adaptive = adaptive;
+        this.verify = decode && verify;
+        this.jobs = Math.max(1, jobs);
+        this.workers = Math.max(1, workers);
+        this.logSink = logSink;
+    }
+
+    public void run(String batch) throws IOException {
+        ForkJoinPool blockPool = new ForkJoinPool(workers);
+        ThreadPoolExecutor filePool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(2 * jobs), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        try {
+            if (batch.equals("-")) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        submit(filePool, blockPool, Path.of(line.trim()));
+                    }
+                }
+            } else {
+                for (Path file : listFiles(batch)) {
+                    submit(filePool, blockPool, file);
+                }
+            }
+        } finally {
+            filePool.shutdown();
+            try {
+                filePool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blockPool.shutdown();
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /*
+     * A directory is walked recursively; anything else is a glob, matched below its longest
+     * wildcard-free directory prefix. The list is taken before any output is written, so files
+     * produced by the batch itself are never picked up.
+     */
+    List<Path> listFiles(String batch) throws IOException {
+        Path directory = Path.of(batch);
+        PathMatcher matcher = null;
+        if (!Files.isDirectory(directory)) {
+            int wildcard = indexOfWildcard(batch);
+            int separator = batch.lastIndexOf('/', wildcard);
+            directory = Path.of(separator < 0 ? "." : batch.substring(0, separator + 1));
+            String pattern = separator < 0 ? batch : batch.substring(separator + 1);
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        }
+        Path root = directory;
+        PathMatcher globMatcher = matcher;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(file -> globMatcher == null || globMatcher.matches(root.relativize(file)))
+                    .filter(this::isInput)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[{".indexOf(glob.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return glob.length();
+    }
+
+    // Encoding skips earlier outputs; decoding takes the encoded files only
+    private boolean isInput(Path file) {
+        String name = file.getFileName().toString();
+        boolean encoded = name.endsWith(HUFFMAN_SUFFIX) || name.endsWith(RUN_LENGTH_SUFFIX) || name.endsWith(ADAPTIVE_SUFFIX)
+                || name.endsWith(STREAM_SUFFIX);
+        return decode ? encoded : !encoded && !name.endsWith(DECODED_SUFFIX);
+    }
+
+    private void submit(ThreadPoolExecutor filePool, ForkJoinPool blockPool, Path file) {
+        filePool.execute(() -> process(blockPool, file));
+    }
+
+    private void process(ForkJoinPool blockPool, Path file) {
+        String filename = file.toString();
+        // Each file gets its own listener: the debug listener keeps per-phase state
+        CodingListener listener = logSink == null ? CodingListener.NONE : new DebugListener(logSink, filename);
+        try {
+            long input = Files.size(file);
+            long output;
+            if (!decode && adaptive) {
+                output = Main.encodeAdaptiveFile(filename, blockPool, workers, listener).getEncodedFileSize() / 8;
+            } else if (!decode) {
+                Main.EncodeResult result = Main.encodeFile(filename, blockPool, workers, listener);
+                output = (result.getHuffmanEncodedFileSize() + result.runLength.getEncodedFileSize()) / 8;
+            } else if (verify) {
+                Main.verifyFile(filename);
+                output = 0;
+            } else if (filename.endsWith(ADAPTIVE_SUFFIX)) {
+                output = Main.decodeAdaptiveFile(filename, blockPool, workers, listener);
+            } else if (filename.endsWith(HUFFMAN_SUFFIX)) {
+                output = Main.decodeHuffmanFile(filename, blockPool, workers, listener);
+            } else if (filename.endsWith(STREAM_SUFFIX)) {
+                output = Main.decodeStreamFile(filename, listener);
+            } else {
+                output = Main.decodeRunlengthFile(filename, listener);
+            }
+            files.incrementAndGet();
+            bytesIn.addAndGet(input);
+            bytesOut.addAndGet(output);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            System.out.println("[LOG] --- ERROR: " + filename + ": " + e);
+        }
+    }
+
+    public void printSummary() {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("[LOG] --- Batch %s: %d files (%d failed) in %.3f s%n",
+                verify ? "verify" : decode ? "decode" : "encode", files.get(), failures.get(), seconds);
+        System.out.printf("[LOG] --- Bytes in: %d, bytes out: %d%n", bytesIn.get(), bytesOut.get());
+        if (seconds > 0) {
+            System.out.printf("[LOG] --- Throughput: %.3f MB/s, %.1f files/s%n",
+                    bytesIn.get() / (1024.0 * 1024.0) / seconds, files.get() / seconds);
+        }
+        System.out.println("[LOG] --- ===================================================");
+    }
+}
@@ -2,28 +2,38 @@ package org.example;
 
 public class BinTree {
 
-    private String data;
-    private int weight;
-    private BinTree left;
-    private BinTree right;
+    public static final int INTERNAL = -1;
 
-    public BinTree(String data, int weight, BinTree left, BinTree right) {
-        this.data = data;
+    private final int symbol;
+    private final long weight;
+    private final BinTree left;
+    private final BinTree right;
+
+    public BinTree(long weight, BinTree left, BinTree right) {
+        this.symbol = INTERNAL;
         this.weight = weight;
         this.left = left;
         this.right = right;
     }
 
-    public BinTree(String data, int weight) {
-        this(data, weight, null, null);
+    public BinTree(int symbol, long weight) {
+        this.symbol = symbol;
+        this.weight = weight;
+        this.left = null;
+        this.right = null;
     }
 
-    public int getWeight() {
+    public long getWeight() {
         return weight;
     }
 
-    public String getData() {
-        return data;
+    // Symbol of a leaf, INTERNAL for merged nodes
+    public int getSymbol() {
+        return symbol;
+    }
+
+    public boolean isLeaf() {
+        return symbol != INTERNAL;
     }
 
     public BinTree getLeft() {
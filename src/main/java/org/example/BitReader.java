@@ -0,0 +1,100 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BitReader {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] chunk;
+    private int chunkPosition;
+    private int chunkLimit;
+    private boolean endOfStream;
+
+    // Unread bits are kept right-aligned; the next bit to read is bit (bitsInBuffer - 1)
+    private long bitBuffer;
+    private int bitsInBuffer;
+
+    public BitReader(InputStream in) {
+        this.in = in;
+        this.chunk = new byte[CHUNK_SIZE];
+    }
+
+    // Reads the bytes from offset to offset + length in place
+    public BitReader(byte[] data, int offset, int length) {
+        this.in = null;
+        this.chunk = data;
+        this.chunkPosition = offset;
+        this.chunkLimit = offset + length;
+        this.endOfStream = true;
+    }
+
+    // Tops the bit buffer up to at least 57 bits unless the stream is exhausted
+    private void refill() throws IOException {
+        while (bitsInBuffer <= 56) {
+            if (chunkPosition == chunkLimit) {
+                if (endOfStream || !fillChunk()) {
+                    return;
+                }
+            }
+            bitBuffer = (bitBuffer << 8) | (chunk[chunkPosition++] & 0xFF);
+            bitsInBuffer += 8;
+        }
+    }
+
+    private boolean fillChunk() throws IOException {
+        int read = in.read(chunk, 0, chunk.length);
+        if (read <= 0) {
+            endOfStream = true;
+            return false;
+        }
+        chunkPosition = 0;
+        chunkLimit = read;
+        return true;
+    }
+
+    /**
+     * Returns the next `count` bits (at most 56) without consuming them.
+     * Past the end of the stream the missing bits read as zeros.
+     */
+    public long peekBits(int count) throws IOException {
+        if (bitsInBuffer < count) {
+            refill();
+            if (bitsInBuffer < count) {
+                return (bitBuffer << (count - bitsInBuffer)) & ((1L << count) - 1);
+            }
+        }
+        return (bitBuffer >>> (bitsInBuffer - count)) & ((1L << count) - 1);
+    }
+
+    public void skipBits(int count) throws IOException {
+        if (bitsInBuffer < count) {
+            refill();
+            if (bitsInBuffer < count) {
+                throw new EOFException("unexpected end of encoded bitstream");
+            }
+        }
+        bitsInBuffer -= count;
+    }
+
+    public int readBit() throws IOException {
+        int bit = (int)peekBits(1);
+        skipBits(1);
+        return bit;
+    }
+
+    // Reads `count` bits (at most 64, most significant bit first)
+    public long readBits(int count) throws IOException {
+        long value = 0;
+        while (count > 0) {
+            int step = Math.min(count, 32);
+            value = (value << step) | peekBits(step);
+            skipBits(step);
+            count -= step;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,90 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * MSB-first bit writer with a 64-bit accumulator. Whole bytes are moved from the accumulator
+ * into a byte buffer only when the next code would not fit, so writing a code is a shift and
+ * an or in the common case. The buffer is either drained into an OutputStream when full or,
+ * without a stream, is the caller's (reusable) destination and must be large enough.
+ */
+public class BitWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final ByteBuffer buffer;
+    private long accumulator;
+    private int bitsInAccumulator;
+    private long totalBits;
+
+    public BitWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public BitWriter(ByteBuffer buffer) {
+        this.out = null;
+        this.buffer = buffer;
+    }
+
+    public void writeBit(int bit) throws IOException {
+        writeBits(bit, 1);
+    }
+
+    // Writes the lowest `count` bits of value (count <= 64), most significant bit first
+    public void writeBits(long value, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (count > 32) {
+            writeBits(value >>> 32, count - 32);
+            count = 32;
+        }
+        if (bitsInAccumulator + count > 64) {
+            drainBytes();
+        }
+        accumulator = (accumulator << count) | (value & (-1L >>> (64 - count)));
+        bitsInAccumulator += count;
+        totalBits += count;
+    }
+
+    private void drainBytes() throws IOException {
+        while (bitsInAccumulator >= 8) {
+            if (!buffer.hasRemaining()) {
+                drainBuffer();
+            }
+            bitsInAccumulator -= 8;
+            buffer.put((byte)(accumulator >>> bitsInAccumulator));
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        if (out != null) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.clear();
+        }
+    }
+
+    // Pads the last partial byte with zeros (padding is not counted in getTotalBits)
+    public void flush() throws IOException {
+        drainBytes();
+        if (bitsInAccumulator > 0) {
+            if (!buffer.hasRemaining()) {
+                drainBuffer();
+            }
+            buffer.put((byte)(accumulator << (8 - bitsInAccumulator)));
+            bitsInAccumulator = 0;
+        }
+        if (out != null) {
+            drainBuffer();
+            out.flush();
+        }
+    }
+
+    public long getTotalBits() {
+        return totalBits;
+    }
+}
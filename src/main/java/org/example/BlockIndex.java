@@ -0,0 +1,193 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Trailing block index of the block containers (Huffman and adaptive): the compressed offset,
+ * length and CRC32C of every block, then a fixed-size footer with the offset of the index, the
+ * block count, the CRC32C of the header, the CRC32C of the original data and last the CRC32C of
+ * the index entries and the footer fields before it. Blocks have a fixed
+ * uncompressed size given in the header (the last one may be shorter), so the uncompressed offset
+ * of block i is i * blockSize and any byte range maps to its blocks without decoding anything else.
+ * The index, the footer and the header are checked when the index is read and every block when it
+ * is read, so a damaged file fails before it is decoded; the content checksum catches the rest at
+ * the end of a full decode.
+ */
+class BlockIndex {
+
+    static final int ENTRY_BYTES = 16;
+    static final int FOOTER_BYTES = 24;
+
+    private final String format;
+    private final long originalLength;
+    private final int blockSize;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] checksums;
+    private final int contentChecksum;
+
+    private BlockIndex(String format, long originalLength, int blockSize, long[] offsets, int[] lengths,
+                       int[] checksums, int contentChecksum) {
+        this.format = format;
+        this.originalLength = originalLength;
+        this.blockSize = blockSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.checksums = checksums;
+        this.contentChecksum = contentChecksum;
+    }
+
+    static int blockCount(long length, int blockSize) {
+        return (int)((length + blockSize - 1) / blockSize);
+    }
+
+    // Size of index and footer for the given number of blocks
+    static long sizeInBytes(int blockCount) {
+        return (long)blockCount * ENTRY_BYTES + FOOTER_BYTES;
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int)crc.getValue();
+    }
+
+    static void write(OutputStream out, long[] offsets, int[] lengths, int[] checksums, long indexOffset,
+                      int headerChecksum, int contentChecksum) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate((int)sizeInBytes(offsets.length));
+        for (int block = 0; block < offsets.length; block++) {
+            index.putLong(offsets[block]);
+            index.putInt(lengths[block]);
+            index.putInt(checksums[block]);
+        }
+        index.putLong(indexOffset);
+        index.putInt(offsets.length);
+        index.putInt(headerChecksum);
+        index.putInt(contentChecksum);
+        index.putInt(checksum(index.array(), 0, index.position()));
+        out.write(index.array());
+    }
+
+    /*
+     * Reads the index and checks the file length, the index and the header checksum. Readers call
+     * it right after the fixed header fields, so code tables are only parsed from a checked header.
+     */
+    static BlockIndex read(FileChannel channel, long originalLength, int blockSize, String format) throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_BYTES) {
+            throw new IOException("corrupted " + format + " file: truncated to " + size + " bytes");
+        }
+        ByteBuffer footer = readFully(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+        long indexOffset = footer.getLong();
+        int blockCount = footer.getInt();
+        int headerChecksum = footer.getInt();
+        int contentChecksum = footer.getInt();
+        int indexChecksum = footer.getInt();
+        if (blockSize <= 0 || blockCount != blockCount(originalLength, blockSize)) {
+            throw new IOException("corrupted " + format + " file: block index does not match the header");
+        }
+        if (indexOffset < 0 || indexOffset + sizeInBytes(blockCount) != size) {
+            throw new IOException("corrupted " + format + " file: truncated or extended (" + size + " bytes, index at " + indexOffset + ")");
+        }
+        ByteBuffer index = readFully(channel, indexOffset, blockCount * ENTRY_BYTES);
+        CRC32C crc = new CRC32C();
+        crc.update(index.array(), 0, blockCount * ENTRY_BYTES);
+        crc.update(footer.array(), 0, FOOTER_BYTES - 4);
+        if ((int)crc.getValue() != indexChecksum) {
+            throw new IOException("corrupted " + format + " file: block index checksum mismatch");
+        }
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        int[] checksums = new int[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            offsets[block] = index.getLong();
+            lengths[block] = index.getInt();
+            checksums[block] = index.getInt();
+            if (offsets[block] < 0 || lengths[block] < 0 || offsets[block] + lengths[block] > indexOffset) {
+                throw new IOException("corrupted " + format + " file: block " + block + " lies outside the data");
+            }
+        }
+        // The header ends where the first block (or, without blocks, the index) starts
+        long headerLength = blockCount > 0 ? offsets[0] : indexOffset;
+        if (headerLength > Integer.MAX_VALUE) {
+            throw new IOException("corrupted " + format + " file: header of " + headerLength + " bytes");
+        }
+        byte[] header = readFully(channel, 0, (int)headerLength).array();
+        if (checksum(header, 0, header.length) != headerChecksum) {
+            throw new IOException("corrupted " + format + " file: header checksum mismatch");
+        }
+        return new BlockIndex(format, originalLength, blockSize, offsets, lengths, checksums, contentChecksum);
+    }
+
+    /*
+     * Checks the header and every block against their checksums without decoding anything. All
+     * containers start with magic (16 bits), version (8), original length (64) and block size (32).
+     */
+    static BlockIndex verify(FileChannel channel, int version, String format) throws IOException {
+        ByteBuffer header = readFully(channel, 2, 13);
+        int fileVersion = header.get() & 0xFF;
+        if (fileVersion != version) {
+            throw new IOException("unsupported " + format + " file version: " + fileVersion);
+        }
+        BlockIndex index = read(channel, header.getLong(), header.getInt(), format);
+        for (int block = 0; block < index.blockCount(); block++) {
+            index.readBlock(channel, block);
+        }
+        return index;
+    }
+
+    // Positional read, safe to call from several threads on the same channel
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new java.io.EOFException("unexpected end of encoded file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    byte[] readBlock(FileChannel channel, int block) throws IOException {
+        byte[] encoded = readFully(channel, offsets[block], lengths[block]).array();
+        if (checksum(encoded, 0, encoded.length) != checksums[block]) {
+            throw new IOException("corrupted " + format + " file: checksum mismatch in block " + block
+                    + " (offset " + offsets[block] + ")");
+        }
+        return encoded;
+    }
+
+    // Compares the CRC32C of the whole decoded data with the one recorded by the encoder
+    void checkContent(CRC32C decoded) throws IOException {
+        if ((int)decoded.getValue() != contentChecksum) {
+            throw new IOException("corrupted " + format + " file: checksum mismatch of the decoded data");
+        }
+    }
+
+    int blockCount() {
+        return offsets.length;
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    long originalLength() {
+        return originalLength;
+    }
+
+    int compressedLength(int block) {
+        return lengths[block];
+    }
+
+    long uncompressedOffset(int block) {
+        return (long)block * blockSize;
+    }
+
+    int decodedLength(int block) {
+        return (int)Math.min(blockSize, originalLength - uncompressedOffset(block));
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Processes independent blocks concurrently and hands the results to a sink in block order.
+ * At most `window` blocks are in flight, so memory stays bounded by window * block size.
+ */
+class BlockPipeline {
+
+    interface BlockTask {
+        byte[] run(int block) throws IOException;
+    }
+
+    interface BlockSink {
+        void accept(int block, byte[] result) throws IOException;
+    }
+
+    static void run(ExecutorService pool, int blockCount, int window, BlockTask task, BlockSink sink) throws IOException {
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        int nextToWrite = 0;
+        try {
+            for (int block = 0; block < blockCount; block++) {
+                if (inFlight.size() >= window) {
+                    sink.accept(nextToWrite++, await(inFlight.removeFirst()));
+                }
+                final int current = block;
+                inFlight.addLast(pool.submit(() -> {
+                    try {
+                        return task.run(current);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                sink.accept(nextToWrite++, await(inFlight.removeFirst()));
+            }
+        } finally {
+            for (Future<byte[]> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a block", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            throw new IOException("block processing failed", cause);
+        }
+    }
+}
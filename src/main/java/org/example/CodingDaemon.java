@@ -0,0 +1,292 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running service that keeps one warm JVM for many small requests: the JIT-compiled codecs,
+ * the block worker pool, the table cache and the per-thread encode buffers all outlive a request,
+ * so a file pays neither JVM startup nor warm-up. It listens on a Unix domain socket only its
+ * owner may connect to, or on a localhost TCP port; every connection gets a thread of its own and
+ * may send any number of requests, one line each:
+ *   ENCODE <path> | ENCODE_ADAPTIVE <path> | DECODE <path> | VERIFY <path>
+ * Every request is answered with one line, "OK <bytes in> <bytes out> <microseconds>" or
+ * "ERROR <message>". Paths are absolute (the client resolves them) and the outputs are written
+ * next to the inputs, as with the CLI; encoding options (-o1, -L, -table) are the daemon's own.
+ *
+ * Requests run with the owner's rights, so other users must not reach the daemon. A TCP port is
+ * open to every local user: there the first line of a connection has to be "AUTH <token>", with
+ * the random token the daemon writes to an owner-only file under ~/.codingmanager.
+ */
+public class CodingDaemon implements Closeable {
+
+    static final int DEFAULT_PORT = 7425;
+    static final String ENCODE = "ENCODE";
+    static final String ENCODE_ADAPTIVE = "ENCODE_ADAPTIVE";
+    static final String DECODE = "DECODE";
+    static final String VERIFY = "VERIFY";
+    static final String AUTH = "AUTH";
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final ServerSocketChannel server;
+    private final Path socketFile;
+    // Only for TCP: the token every connection has to present, and the file it is published in
+    private final byte[] token;
+    private final Path tokenFile;
+    private final ForkJoinPool blockPool;
+    private final ExecutorService connections;
+    private final int workers;
+    private final AsyncLogSink logSink;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private CodingDaemon(ServerSocketChannel server, Path socketFile, String token, Path tokenFile, int workers,
+                         AsyncLogSink logSink) {
+        this.server = server;
+        this.socketFile = socketFile;
+        this.token = token == null ? null : token.getBytes(StandardCharsets.US_ASCII);
+        this.tokenFile = tokenFile;
+        this.workers = Math.max(1, workers);
+        this.logSink = logSink;
+        this.blockPool = new ForkJoinPool(this.workers);
+        this.connections = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "daemon-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Path defaultSocket() {
+        return Path.of(System.getProperty("user.home"), ".codingmanager", "daemon.sock");
+    }
+
+    static Path tokenFile(int port) {
+        return Path.of(System.getProperty("user.home"), ".codingmanager", "daemon-" + port + ".token");
+    }
+
+    // Binds the Unix domain socket if a path is given, otherwise the port on the loopback address
+    public static CodingDaemon open(String socketPath, int port, int workers, AsyncLogSink logSink) throws IOException {
+        if (socketPath == null) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                byte[] random = new byte[32];
+                new SecureRandom().nextBytes(random);
+                String token = HexFormat.of().formatHex(random);
+                Path tokenFile = tokenFile(server.socket().getLocalPort());
+                writeOwnerOnly(tokenFile, token.getBytes(StandardCharsets.US_ASCII));
+                return new CodingDaemon(server, null, token, tokenFile, workers, logSink);
+            } catch (IOException | RuntimeException e) {
+                server.close();
+                throw e;
+            }
+        }
+        Path socketFile = Path.of(socketPath).toAbsolutePath();
+        if (Files.exists(socketFile)) {
+            if (isListening(socketFile)) {
+                throw new IOException("a daemon is already listening on " + socketFile);
+            }
+            // Nobody answers: the file is left over from a daemon that was killed
+            Files.delete(socketFile);
+        }
+        Files.createDirectories(socketFile.getParent(), ownerOnly("rwx------"));
+        // Bound in a private directory and restricted there, so nobody can connect before the chmod
+        Path staging = Files.createTempDirectory(socketFile.getParent(), ".daemon", ownerOnly("rwx------"));
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            Path boundFile = staging.resolve("daemon.sock");
+            server.bind(UnixDomainSocketAddress.of(boundFile));
+            if (POSIX) {
+                Files.setPosixFilePermissions(boundFile, PosixFilePermissions.fromString("rw-------"));
+            }
+            Files.move(boundFile, socketFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(staging.resolve("daemon.sock"));
+            Files.delete(staging);
+        }
+        return new CodingDaemon(server, socketFile, null, null, workers, logSink);
+    }
+
+    private static FileAttribute<?>[] ownerOnly(String permissions) {
+        return POSIX ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions)) }
+                : new FileAttribute<?>[0];
+    }
+
+    // Created with owner-only permissions from the start, then moved into place
+    private static void writeOwnerOnly(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent(), ownerOnly("rwx------"));
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp", ownerOnly("rw-------"));
+        try {
+            Files.write(temporary, content);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static boolean isListening(Path socketFile) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socketFile)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static SocketChannel connect(String socketPath, int port) throws IOException {
+        SocketAddress address = socketPath == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : UnixDomainSocketAddress.of(Path.of(socketPath).toAbsolutePath());
+        return SocketChannel.open(address);
+    }
+
+    // The token of the daemon on this port; only the user running it can read the file
+    static String readToken(int port) throws IOException {
+        try {
+            return Files.readString(tokenFile(port), StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException e) {
+            throw new IOException("no daemon token in " + tokenFile(port) + " (is the daemon running as this user?)");
+        }
+    }
+
+    public String address() {
+        return socketFile != null ? socketFile.toString() : "localhost:" + server.socket().getLocalPort();
+    }
+
+    // Accepts connections until the daemon is closed
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (AsynchronousCloseException e) {
+                return;
+            }
+            connections.execute(() -> handle(client));
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)) {
+            if (token != null && !authorized(in.readLine())) {
+                out.write("ERROR not authorized\n");
+                out.flush();
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                out.write(execute(line));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; its requests so far have been answered
+        }
+    }
+
+    // The first line on a TCP connection: AUTH and the token, compared in constant time
+    private boolean authorized(String line) {
+        return line != null && line.startsWith(AUTH + " ")
+                && MessageDigest.isEqual(token, line.substring(AUTH.length() + 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String execute(String line) {
+        requests.incrementAndGet();
+        int separator = line.indexOf(' ');
+        String operation = separator < 0 ? line : line.substring(0, separator);
+        String filename = separator < 0 ? "" : line.substring(separator + 1);
+        // Each request gets its own listener: the debug listener keeps per-phase state
+        CodingListener listener = logSink == null ? CodingListener.NONE : new DebugListener(logSink, filename);
+        long start = System.nanoTime();
+        try {
+            if (filename.isEmpty()) {
+                throw new IOException("missing file name");
+            }
+            long input = Files.size(Path.of(filename));
+            long output;
+            switch (operation) {
+                case ENCODE: {
+                    Main.EncodeResult result = Main.encodeFile(filename, blockPool, workers, listener);
+                    output = (result.getHuffmanEncodedFileSize() + result.runLength.getEncodedFileSize()) / 8;
+                    break;
+                }
+                case ENCODE_ADAPTIVE:
+                    output = Main.encodeAdaptiveFile(filename, blockPool, workers, listener).getEncodedFileSize() / 8;
+                    break;
+                case DECODE:
+                    output = Main.decodeAnyFile(filename, blockPool, workers, listener);
+                    break;
+                case VERIFY:
+                    Main.verifyFile(filename);
+                    output = 0;
+                    break;
+                default:
+                    throw new IOException("unknown request " + operation);
+            }
+            return "OK " + input + " " + output + " " + (System.nanoTime() - start) / 1000;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            String message = e instanceof NoSuchFileException ? "no such file " + e.getMessage()
+                    : e.getMessage() != null ? e.getMessage() : e.toString();
+            return "ERROR " + message.replace('\n', ' ');
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+        blockPool.shutdown();
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+        if (tokenFile != null) {
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example;
+
+/**
+ * Receives progress events from the codecs (debug output, tracing). Every method is a no-op by
+ * default; with NONE the calls inside the hot loops are inlined to nothing by the JIT, so a
+ * normal run carries no logging branches and the managers do not depend on the CLI state.
+ */
+public interface CodingListener {
+
+    CodingListener NONE = new CodingListener() {};
+
+    default void onFrequencies(long[] frequencies, long totalSymbols) {}
+
+    default void onLeaves(BinTree[] sortedLeaves) {}
+
+    default void onMerge(BinTree left, BinTree right, int nodesLeft) {}
+
+    default void onCodeGenerated(HuffmanCode code) {}
+
+    default void onEncodeStart(String codec, long originalLength, HuffmanCode code) {}
+
+    default void onDecodeStart(String codec, long originalLength, HuffmanCode code) {}
+
+    default void onBlock(int block, long inputBytes, long outputBytes) {}
+
+    default void onRun(long length, int symbol) {}
+
+    default void onLiteral(long length) {}
+
+    default void onFinish(String codec) {}
+}
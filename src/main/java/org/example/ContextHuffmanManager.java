@@ -0,0 +1,329 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
+
+/**
+ * Order-1 Huffman coding: every byte is coded with a table chosen by the byte before it. Pair
+ * counts give one histogram per context (previous byte); a context gets a table of its own only
+ * when the table pays for itself against coding the context with the order-0 code, and all other
+ * (rarely seen or unskewed) contexts share one fallback table built from their merged counts.
+ * Every block starts in context FrequencyCounter.INITIAL_CONTEXT, so blocks stay independent.
+ *
+ * Layout: header (magic, version, original length, block size, fallback table, one bit per
+ * context telling whether it has its own table, then those tables in context order), then the
+ * blocks and the block index and footer with the checksums (see BlockIndex).
+ */
+public class ContextHuffmanManager {
+
+    static final String CODEC_NAME = "ORDER-1 HUFFMAN";
+    static final int MAGIC = 0x4831; // "H1"
+    static final int VERSION = 3;
+    static final int ALPHABET_SIZE = HuffmanManager.ALPHABET_SIZE;
+    static final int BLOCK_SIZE = HuffmanManager.BLOCK_SIZE;
+
+    private final MappedSource source;
+    private final ExecutorService pool;
+    private final int workers;
+    private final CodingListener listener;
+    private final long originalLength;
+    // Count of every (previous, current) pair at (previous << 8) | current
+    private final long[] pairs;
+    private int maxCodeLength = HuffmanCode.MAX_CODE_LENGTH;
+    private HuffmanCode fallback;
+    private final HuffmanCode[] contextCodes = new HuffmanCode[ALPHABET_SIZE];
+    private int ownTables;
+    // Code word and length per pair, precomputed for the encode loop
+    private final long[] codeWords = new long[ALPHABET_SIZE * ALPHABET_SIZE];
+    private final int[] codeLengths = new int[ALPHABET_SIZE * ALPHABET_SIZE];
+    private int longestCode;
+    private long encodedFileSize;
+    private double entropy;
+    private double conditionalEntropy;
+    private double avgWordLength;
+
+    public ContextHuffmanManager(MappedSource source, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        this.source = source;
+        this.pool = pool;
+        this.workers = workers;
+        this.listener = listener;
+        this.originalLength = source.length();
+        this.pairs = FrequencyCounter.countPairs(source, pool, workers);
+
+        listener.onFrequencies(symbolCounts(), originalLength);
+    }
+
+    public void setMaxCodeLength(int maxCodeLength) {
+        HuffmanManager.checkMaxCodeLength(maxCodeLength);
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /*
+     * A context keeps its own table when table plus payload is smaller than the payload under the
+     * order-0 code. The order-0 code stands in for the fallback, which is only known once the
+     * merged contexts are. Everything is rebuilt, so calling it again (after setMaxCodeLength)
+     * starts from scratch.
+     */
+    public void generateHuffmanCodes() {
+        Arrays.fill(contextCodes, null);
+        ownTables = 0;
+        longestCode = 0;
+        long[] symbols = symbolCounts();
+        HuffmanCode order0 = new HuffmanCode(HuffmanManager.codeLengths(symbols, CodingListener.NONE));
+        long[] merged = new long[ALPHABET_SIZE];
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            long[] counts = row(context);
+            HuffmanCode own = new HuffmanCode(HuffmanManager.codeLengths(counts, CodingListener.NONE));
+            long ownBits = own.getTableBits();
+            long fallbackBits = 0;
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                ownBits += counts[symbol] * own.getLength(symbol);
+                fallbackBits += counts[symbol] * order0.getLength(symbol);
+            }
+            if (own.getSymbolCount() > 0 && ownBits < fallbackBits) {
+                contextCodes[context] = limitedCode(counts);
+                ownTables++;
+            } else {
+                for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                    merged[symbol] += counts[symbol];
+                }
+            }
+        }
+        this.fallback = limitedCode(merged);
+        listener.onCodeGenerated(fallback);
+
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            if (contextCodes[context] == null) {
+                contextCodes[context] = fallback;
+            }
+            HuffmanCode code = contextCodes[context];
+            longestCode = Math.max(longestCode, code.getMaxLength());
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                codeWords[(context << 8) | symbol] = code.getCode(symbol);
+                codeLengths[(context << 8) | symbol] = code.getLength(symbol);
+            }
+        }
+    }
+
+    private HuffmanCode limitedCode(long[] counts) {
+        int[] lengths = HuffmanManager.codeLengths(counts, listener);
+        return new HuffmanCode(HuffmanManager.limitLengths(lengths, counts, maxCodeLength));
+    }
+
+    private long[] row(int context) {
+        return Arrays.copyOfRange(pairs, context << 8, (context + 1) << 8);
+    }
+
+    private long[] symbolCounts() {
+        long[] counts = new long[ALPHABET_SIZE];
+        for (int pair = 0; pair < pairs.length; pair++) {
+            counts[pair & 0xFF] += pairs[pair];
+        }
+        return counts;
+    }
+
+    public void encodeToFile(OutputStream out) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(headerBytes);
+        writer.writeBits(MAGIC, 16);
+        writer.writeBits(VERSION, 8);
+        writer.writeBits(originalLength, 64);
+        writer.writeBits(BLOCK_SIZE, 32);
+        fallback.writeTable(writer);
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            writer.writeBit(contextCodes[context] == fallback ? 0 : 1);
+        }
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            if (contextCodes[context] != fallback) {
+                contextCodes[context].writeTable(writer);
+            }
+        }
+        writer.flush();
+        byte[] header = headerBytes.toByteArray();
+        out.write(header);
+
+        listener.onEncodeStart(CODEC_NAME, originalLength, fallback);
+
+        int blockCount = BlockIndex.blockCount(originalLength, BLOCK_SIZE);
+        long[] blockOffsets = new long[blockCount];
+        int[] blockLengths = new int[blockCount];
+        int[] blockChecksums = new int[blockCount];
+        CRC32C content = new CRC32C();
+        long[] position = { header.length };
+
+        BlockPipeline.run(pool, blockCount, 2 * workers,
+                block -> encodeBlock(source.block(block, BLOCK_SIZE)),
+                (block, encoded) -> {
+                    out.write(encoded);
+                    blockOffsets[block] = position[0];
+                    blockLengths[block] = encoded.length;
+                    blockChecksums[block] = BlockIndex.checksum(encoded, 0, encoded.length);
+                    position[0] += encoded.length;
+                    ByteBuffer data = source.block(block, BLOCK_SIZE);
+                    listener.onBlock(block, data.limit(), encoded.length);
+                    content.update(data);
+                });
+
+        BlockIndex.write(out, blockOffsets, blockLengths, blockChecksums, position[0],
+                BlockIndex.checksum(header, 0, header.length), (int)content.getValue());
+
+        this.encodedFileSize = (position[0] + BlockIndex.sizeInBytes(blockCount)) * 8;
+        listener.onFinish(CODEC_NAME);
+        calculateStatistics();
+    }
+
+    private byte[] encodeBlock(ByteBuffer block) throws IOException {
+        ByteBuffer output = HuffmanManager.encodeBuffer((int)(((long)block.limit() * longestCode + 7) / 8) + 8);
+        BitWriter writer = new BitWriter(output);
+        int previous = FrequencyCounter.INITIAL_CONTEXT;
+        for (int i = 0, limit = block.limit(); i < limit; i++) {
+            int current = block.get(i) & 0xFF;
+            int pair = (previous << 8) | current;
+            writer.writeBits(codeWords[pair], codeLengths[pair]);
+            previous = current;
+        }
+        writer.flush();
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    // H(X), H(X | previous byte) and the average code word length actually achieved
+    private void calculateStatistics() {
+        if (originalLength == 0) {
+            return;
+        }
+        entropy = 0;
+        conditionalEntropy = 0;
+        long[] symbols = symbolCounts();
+        for (long count : symbols) {
+            if (count > 0) {
+                double probability = (double)count / originalLength;
+                entropy -= probability * Math.log(probability) / Math.log(2);
+            }
+        }
+        double bits = 0;
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            long contextTotal = 0;
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                contextTotal += pairs[(context << 8) | symbol];
+            }
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                long count = pairs[(context << 8) | symbol];
+                if (count > 0) {
+                    conditionalEntropy += (double)count / originalLength * Math.log((double)contextTotal / count) / Math.log(2);
+                    bits += (double)count * codeLengths[(context << 8) | symbol];
+                }
+            }
+        }
+        avgWordLength = bits / originalLength;
+    }
+
+    // Returns the number of decoded bytes
+    public static long decodeFile(Path encodedFile, OutputStream out, ExecutorService pool, int workers,
+                                  CodingListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(encodedFile, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            BlockIndex index = header.index;
+
+            listener.onDecodeStart(CODEC_NAME, header.originalLength, header.fallback);
+
+            CRC32C content = new CRC32C();
+            BlockPipeline.run(pool, index.blockCount(), 2 * workers,
+                    block -> decodeBlock(header.codes, index.readBlock(channel, block), index.decodedLength(block)),
+                    (block, decoded) -> {
+                        out.write(decoded);
+                        content.update(decoded, 0, decoded.length);
+                        listener.onBlock(block, index.compressedLength(block), decoded.length);
+                    });
+            index.checkContent(content);
+            listener.onFinish(CODEC_NAME);
+            return header.originalLength;
+        }
+    }
+
+    // What the header of an encoded file says: the code of every context, shared ones included
+    static class Header {
+        final long originalLength;
+        final int blockSize;
+        final HuffmanCode fallback;
+        final HuffmanCode[] codes;
+        final BlockIndex index;
+
+        Header(long originalLength, int blockSize, HuffmanCode fallback, HuffmanCode[] codes, BlockIndex index) {
+            this.originalLength = originalLength;
+            this.blockSize = blockSize;
+            this.fallback = fallback;
+            this.codes = codes;
+            this.index = index;
+        }
+    }
+
+    static Header readHeader(FileChannel channel) throws IOException {
+        BitReader reader = new BitReader(Channels.newInputStream(channel.position(0)));
+        if (reader.readBits(16) != MAGIC) {
+            throw new IOException("not an order-1 Huffman file (bad magic)");
+        }
+        int version = (int)reader.readBits(8);
+        if (version != VERSION) {
+            throw new IOException("unsupported order-1 Huffman file version: " + version);
+        }
+        long originalLength = reader.readBits(64);
+        int blockSize = (int)reader.readBits(32);
+        BlockIndex index = BlockIndex.read(channel, originalLength, blockSize, "order-1 Huffman");
+        HuffmanCode fallback = HuffmanCode.readTable(reader, ALPHABET_SIZE);
+        boolean[] ownTable = new boolean[ALPHABET_SIZE];
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            ownTable[context] = reader.readBit() == 1;
+        }
+        HuffmanCode[] codes = new HuffmanCode[ALPHABET_SIZE];
+        for (int context = 0; context < ALPHABET_SIZE; context++) {
+            codes[context] = ownTable[context] ? HuffmanCode.readTable(reader, ALPHABET_SIZE) : fallback;
+        }
+        return new Header(originalLength, blockSize, fallback, codes, index);
+    }
+
+    static byte[] decodeBlock(HuffmanCode[] codes, byte[] encoded, int decodedLength) throws IOException {
+        BitReader reader = new BitReader(encoded, 0, encoded.length);
+        byte[] decoded = new byte[decodedLength];
+        int previous = FrequencyCounter.INITIAL_CONTEXT;
+        for (int i = 0; i < decodedLength; i++) {
+            previous = codes[previous].decodeSymbol(reader);
+            decoded[i] = (byte)previous;
+        }
+        return decoded;
+    }
+
+    public long getEncodedFileSize() {
+        return encodedFileSize;
+    }
+
+    // Size of the source in bits, straight from the byte count
+    public long getOriginalFileSize() {
+        return originalLength * 8;
+    }
+
+    public double getEntropy() {
+        return entropy;
+    }
+
+    public double getConditionalEntropy() {
+        return conditionalEntropy;
+    }
+
+    public double getAvgWordLength() {
+        return avgWordLength;
+    }
+
+    // Contexts coded with a table of their own; the others share the fallback table
+    public int getOwnTables() {
+        return ownTables;
+    }
+}
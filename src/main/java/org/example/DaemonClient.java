@@ -0,0 +1,60 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Thin client of a running CodingDaemon: one connection, requests sent one at a time. File names
+ * are made absolute here, since the daemon runs in a directory of its own.
+ */
+public class DaemonClient implements Closeable {
+
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+
+    private DaemonClient(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        this.out = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+    }
+
+    // Over TCP the connection is first authorized with the token the daemon left for its owner
+    public static DaemonClient connect(String socketPath, int port) throws IOException {
+        String token = socketPath == null ? CodingDaemon.readToken(port) : null;
+        DaemonClient client = new DaemonClient(CodingDaemon.connect(socketPath, port));
+        if (token != null) {
+            client.out.write(CodingDaemon.AUTH + " " + token + "\n");
+            client.out.flush();
+        }
+        return client;
+    }
+
+    // The daemon's answer: "OK <bytes in> <bytes out> <microseconds>" or "ERROR <message>"
+    public String request(String operation, String filename) throws IOException {
+        String path = Path.of(filename).toAbsolutePath().toString();
+        if (path.indexOf('\n') >= 0) {
+            throw new IOException("file names with line breaks cannot be sent to the daemon");
+        }
+        out.write(operation + " " + path + "\n");
+        out.flush();
+        String response = in.readLine();
+        if (response == null) {
+            throw new IOException("the daemon closed the connection");
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,145 @@
+package org.example;
+
+/**
+ * The -D output. Per-item events (merges, blocks, runs) are truncated after MAX_DETAIL_LINES
+ * lines per phase, and the number of omitted lines is reported when the phase finishes, so
+ * debugging a large file does not turn into writing a log larger than the file.
+ */
+public class DebugListener implements CodingListener {
+
+    static final int MAX_DETAIL_LINES = 1000;
+    private static final String SEPARATOR = "[LOG] --- ===================================================";
+
+    private static final String PREFIX = "[LOG] --- ";
+
+    private final AsyncLogSink sink;
+    // Batch mode runs files concurrently, so each line is tagged with its file
+    private final String label;
+    private int detailLines;
+    private long omittedLines;
+
+    public DebugListener(AsyncLogSink sink) {
+        this(sink, null);
+    }
+
+    public DebugListener(AsyncLogSink sink, String label) {
+        this.sink = sink;
+        this.label = label;
+    }
+
+    private void log(String line) {
+        if (label != null && line.startsWith(PREFIX)) {
+            line = PREFIX + "[" + label + "] " + line.substring(PREFIX.length());
+        }
+        sink.log(line);
+    }
+
+    private void detail(String line) {
+        if (detailLines < MAX_DETAIL_LINES) {
+            detailLines++;
+            log(line);
+        } else {
+            omittedLines++;
+        }
+    }
+
+    private void endPhase() {
+        if (omittedLines > 0) {
+            log(String.format("[LOG] --- ... %d more lines omitted", omittedLines));
+        }
+        detailLines = 0;
+        omittedLines = 0;
+        log(SEPARATOR);
+    }
+
+    @Override
+    public void onFrequencies(long[] frequencies, long totalSymbols) {
+        log("[LOG] --- GENERATING FREQUENCIES INFORMATION");
+        log("[LOG] --- ");
+        for (int key = 0; key < frequencies.length; key++) {
+            if (frequencies[key] > 0) {
+                log(String.format("[LOG] --- %c, P(%c) = %.4f (dec: %d, bin: %s)",
+                        key, key, (double)frequencies[key] / totalSymbols, key, Integer.toBinaryString(key)));
+            }
+        }
+        endPhase();
+    }
+
+    @Override
+    public void onLeaves(BinTree[] sortedLeaves) {
+        log("[LOG] --- GENERATING HUFFMAN CODE");
+        log("[LOG] --- ");
+        StringBuilder line = new StringBuilder("[LOG] --- ");
+        for (BinTree node : sortedLeaves) {
+            line.append(String.format("%c ( %d )  ", node.getSymbol(), node.getWeight()));
+        }
+        log(line.toString());
+        log("[LOG] --- Current list size: " + sortedLeaves.length);
+        log("[LOG] --- ");
+    }
+
+    @Override
+    public void onMerge(BinTree left, BinTree right, int nodesLeft) {
+        detail(String.format("[LOG] --- Merged ( %d ) + ( %d ) -> ( %d ), nodes left: %d",
+                left.getWeight(), right.getWeight(), left.getWeight() + right.getWeight(), nodesLeft));
+    }
+
+    @Override
+    public void onCodeGenerated(HuffmanCode code) {
+        StringBuilder line = new StringBuilder("[LOG] --- Generated: ");
+        for (int key = 0; key < code.getAlphabetSize(); key++) {
+            if (code.getLength(key) > 0) {
+                line.append(String.format("%c(%s)  ", key, code.toBitString(key)));
+            }
+        }
+        log(line.toString());
+        endPhase();
+    }
+
+    @Override
+    public void onEncodeStart(String codec, long originalLength, HuffmanCode code) {
+        log("[LOG] --- " + codec + ": ENCODING TO A FILE");
+        log("[LOG] --- ");
+        if (code != null) {
+            log(String.format("[LOG] --- # of bytes: %d, # of distinct bytes: %d",
+                    originalLength, code.getSymbolCount()));
+        } else {
+            log(String.format("[LOG] --- # of bytes: %d", originalLength));
+        }
+    }
+
+    @Override
+    public void onDecodeStart(String codec, long originalLength, HuffmanCode code) {
+        log("[LOG] --- " + codec + ": DECODING FILE");
+        log("[LOG] --- ");
+        log(String.format("[LOG] --- # of bytes: %d", originalLength));
+        if (code != null) {
+            for (int character = 0; character < code.getAlphabetSize(); character++) {
+                if (code.getLength(character) > 0) {
+                    log(String.format("[LOG] --- Current row: [char: %c (%s), code: %s]", character,
+                            Integer.toBinaryString(character), code.toBitString(character)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onBlock(int block, long inputBytes, long outputBytes) {
+        detail(String.format("[LOG] --- Block %d: %d bytes -> %d bytes", block, inputBytes, outputBytes));
+    }
+
+    @Override
+    public void onRun(long length, int symbol) {
+        detail(String.format("[LOG] --- Run: # of reps = %d, char: %c (%d)", length, symbol, symbol));
+    }
+
+    @Override
+    public void onLiteral(long length) {
+        detail(String.format("[LOG] --- Literal: %d bytes", length));
+    }
+
+    @Override
+    public void onFinish(String codec) {
+        endPhase();
+    }
+}
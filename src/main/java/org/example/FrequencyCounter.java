@@ -0,0 +1,166 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Byte histogram over a source. Every worker counts a contiguous range of blocks into its own
+ * table and the tables are summed at the end. Inside a worker, consecutive bytes go to four
+ * interleaved counter lanes, so runs of the same byte do not serialize on one counter
+ * (store-to-load forwarding stalls on the same address).
+ */
+public class FrequencyCounter {
+
+    static final int ALPHABET_SIZE = 256;
+    static final int LANES = 4;
+    static final int BLOCK_SIZE = 1 << 20;
+    static final int INITIAL_CONTEXT = 0;
+    // Unit of sampling: small enough to spread over the input, large enough for sequential reads
+    static final int SAMPLE_CHUNK = 4096;
+    // Fixed, so sampling the same file twice gives the same code
+    static final long SAMPLE_SEED = 0x5EED;
+
+    public enum SampleMode { STRIDED, RANDOM }
+
+    public static long[] count(MappedSource source, ExecutorService pool, int workers) throws IOException {
+        int blockCount = BlockIndex.blockCount(source.length(), BLOCK_SIZE);
+        int blocksPerTask = Math.max(1, (blockCount + workers - 1) / workers);
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        for (int first = 0; first < blockCount; first += blocksPerTask) {
+            final int from = first;
+            final int to = Math.min(blockCount, first + blocksPerTask);
+            tasks.add(() -> {
+                long[] lanes = new long[LANES * ALPHABET_SIZE];
+                for (int block = from; block < to; block++) {
+                    countBlock(source.block(block, BLOCK_SIZE), lanes);
+                }
+                return foldLanes(lanes);
+            });
+        }
+        return sum(pool, tasks, ALPHABET_SIZE);
+    }
+
+    /*
+     * Histogram of a fraction of the source, in SAMPLE_CHUNK pieces: every (1 / ratio)-th chunk
+     * (STRIDED), or a uniformly random set of chunks of the same size visited in file order
+     * (RANDOM, selection sampling). Only the chosen chunks are read.
+     */
+    public static long[] sample(MappedSource source, ExecutorService pool, int workers, double ratio,
+                                SampleMode mode) throws IOException {
+        long chunkCount = (source.length() + SAMPLE_CHUNK - 1) / SAMPLE_CHUNK;
+        int target = (int)Math.min(chunkCount, Math.max(1, (long)Math.ceil(chunkCount * ratio)));
+        long[] chunks = new long[chunkCount == 0 ? 0 : target];
+        if (mode == SampleMode.STRIDED) {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = (long)((double)i * chunkCount / chunks.length);
+            }
+        } else {
+            Random random = new Random(SAMPLE_SEED);
+            int chosen = 0;
+            for (long chunk = 0; chosen < chunks.length; chunk++) {
+                if (random.nextDouble() * (chunkCount - chunk) < chunks.length - chosen) {
+                    chunks[chosen++] = chunk;
+                }
+            }
+        }
+
+        int chunksPerTask = Math.max(1, (chunks.length + workers - 1) / workers);
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        for (int first = 0; first < chunks.length; first += chunksPerTask) {
+            final int from = first;
+            final int to = Math.min(chunks.length, first + chunksPerTask);
+            tasks.add(() -> {
+                long[] lanes = new long[LANES * ALPHABET_SIZE];
+                for (int i = from; i < to; i++) {
+                    countBlock(source.block(chunks[i], SAMPLE_CHUNK), lanes);
+                }
+                return foldLanes(lanes);
+            });
+        }
+        return sum(pool, tasks, ALPHABET_SIZE);
+    }
+
+    /*
+     * Counts of byte pairs, indexed (previous << 8) | current, for order-1 models. Every block
+     * starts in context INITIAL_CONTEXT, as the blocks are coded independently.
+     */
+    public static long[] countPairs(MappedSource source, ExecutorService pool, int workers) throws IOException {
+        int blockCount = BlockIndex.blockCount(source.length(), BLOCK_SIZE);
+        int blocksPerTask = Math.max(1, (blockCount + workers - 1) / workers);
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        for (int first = 0; first < blockCount; first += blocksPerTask) {
+            final int from = first;
+            final int to = Math.min(blockCount, first + blocksPerTask);
+            tasks.add(() -> {
+                long[] counts = new long[ALPHABET_SIZE * ALPHABET_SIZE];
+                for (int block = from; block < to; block++) {
+                    ByteBuffer data = source.block(block, BLOCK_SIZE);
+                    int previous = INITIAL_CONTEXT;
+                    for (int i = 0, limit = data.limit(); i < limit; i++) {
+                        int current = data.get(i) & 0xFF;
+                        counts[(previous << 8) | current]++;
+                        previous = current;
+                    }
+                }
+                return counts;
+            });
+        }
+        return sum(pool, tasks, ALPHABET_SIZE * ALPHABET_SIZE);
+    }
+
+    // Runs the counting tasks and adds up the tables they return
+    private static long[] sum(ExecutorService pool, List<Callable<long[]>> tasks, int size) throws IOException {
+        long[] total = new long[size];
+        try {
+            for (Future<long[]> partial : pool.invokeAll(tasks)) {
+                long[] counts = partial.get();
+                for (int i = 0; i < size; i++) {
+                    total[i] += counts[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while counting frequencies", e);
+        } catch (ExecutionException e) {
+            throw new IOException("frequency counting failed", e.getCause());
+        }
+        return total;
+    }
+
+    static void countBlock(ByteBuffer block, long[] lanes) {
+        int limit = block.limit();
+        int i = 0;
+        // Eight bytes per load, spread over the four lanes
+        for (; i + 8 <= limit; i += 8) {
+            long word = block.getLong(i);
+            lanes[(int)word & 0xFF]++;
+            lanes[0x100 + ((int)(word >>> 8) & 0xFF)]++;
+            lanes[0x200 + ((int)(word >>> 16) & 0xFF)]++;
+            lanes[0x300 + ((int)(word >>> 24) & 0xFF)]++;
+            lanes[(int)(word >>> 32) & 0xFF]++;
+            lanes[0x100 + ((int)(word >>> 40) & 0xFF)]++;
+            lanes[0x200 + ((int)(word >>> 48) & 0xFF)]++;
+            lanes[0x300 + ((int)(word >>> 56) & 0xFF)]++;
+        }
+        for (; i < limit; i++) {
+            lanes[block.get(i) & 0xFF]++;
+        }
+    }
+
+    static long[] foldLanes(long[] lanes) {
+        long[] counts = new long[ALPHABET_SIZE];
+        for (int lane = 0; lane < LANES; lane++) {
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                counts[symbol] += lanes[lane * ALPHABET_SIZE + symbol];
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,265 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Canonical Huffman code built from per-symbol code lengths only.
+ * Codes of the same length are consecutive integers assigned in symbol order,
+ * so the table can be rebuilt by the decoder from the lengths alone.
+ */
+public class HuffmanCode {
+
+    static final int MAX_CODE_LENGTH = 64;
+    static final int DECODE_TABLE_BITS = 11;
+    // Codes limited to this length get a table covering all of them (16 KB), so decoding never leaves it
+    static final int FULL_TABLE_BITS = 12;
+    private static final int MAX_PEEK_BITS = 56;
+
+    private final int[] lengths;        // code length per symbol, 0 if the symbol is unused
+    private final long[] codes;         // code value per symbol (lowest `length` bits)
+    private final int[] lengthCounts;   // number of codes per length
+    private final int[] sortedSymbols;  // symbols in canonical order (by length, then by value)
+    private final long[] firstCodes;    // first canonical code of every length
+    private final int[] firstIndexes;   // position in sortedSymbols of the first code of every length
+    private final int maxLength;
+
+    // Direct lookup for codes up to tableBits long: entry = (symbol << 8) | length, 0 if the code is longer
+    private final int tableBits;
+    private final int[] decodeTable;
+
+    public HuffmanCode(int[] lengths) {
+        this.lengths = lengths;
+        this.codes = new long[lengths.length];
+        this.lengthCounts = new int[MAX_CODE_LENGTH + 1];
+
+        int symbolCount = 0;
+        int maxLength = 0;
+        for (int length : lengths) {
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("invalid code length: " + length);
+            }
+            if (length > 0) {
+                lengthCounts[length]++;
+                symbolCount++;
+                maxLength = Math.max(maxLength, length);
+            }
+        }
+        this.maxLength = maxLength;
+        if (!isPrefixFree(lengths)) {
+            throw new IllegalArgumentException("code lengths are over-subscribed");
+        }
+
+        // First code and first canonical index of every length
+        this.firstCodes = firstCodes(lengthCounts, maxLength);
+        this.firstIndexes = new int[MAX_CODE_LENGTH + 1];
+        int index = 0;
+        for (int len = 1; len <= maxLength; len++) {
+            firstIndexes[len] = index;
+            index += lengthCounts[len];
+        }
+        long[] nextCode = firstCodes.clone();
+        int[] nextIndex = firstIndexes.clone();
+
+        this.sortedSymbols = new int[symbolCount];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int len = lengths[symbol];
+            if (len > 0) {
+                codes[symbol] = nextCode[len]++;
+                sortedSymbols[nextIndex[len]++] = symbol;
+            }
+        }
+
+        this.tableBits = Math.max(1, maxLength <= FULL_TABLE_BITS ? maxLength : DECODE_TABLE_BITS);
+        this.decodeTable = new int[1 << tableBits];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int len = lengths[symbol];
+            if (len > 0 && len <= tableBits) {
+                int start = (int)(codes[symbol] << (tableBits - len));
+                Arrays.fill(decodeTable, start, start + (1 << (tableBits - len)), (symbol << 8) | len);
+            }
+        }
+    }
+
+    private static long[] firstCodes(int[] lengthCounts, int maxLength) {
+        long[] firstCodes = new long[MAX_CODE_LENGTH + 1];
+        long code = 0;
+        for (int len = 1; len <= maxLength; len++) {
+            code = (code + lengthCounts[len - 1]) << 1;
+            firstCodes[len] = code;
+        }
+        return firstCodes;
+    }
+
+    /*
+     * Just the canonical code words of the lengths, the same as getCode would give, for encoders
+     * that never decode and do not need the lookup tables.
+     */
+    static long[] canonicalCodes(int[] lengths) {
+        int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+        int maxLength = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                lengthCounts[length]++;
+                maxLength = Math.max(maxLength, length);
+            }
+        }
+        long[] nextCode = firstCodes(lengthCounts, maxLength);
+        long[] codes = new long[lengths.length];
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] > 0) {
+                codes[symbol] = nextCode[lengths[symbol]]++;
+            }
+        }
+        return codes;
+    }
+
+    public int getLength(int symbol) {
+        return symbol < lengths.length ? lengths[symbol] : 0;
+    }
+
+    public long getCode(int symbol) {
+        return codes[symbol];
+    }
+
+    public int getSymbolCount() {
+        return sortedSymbols.length;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public int getAlphabetSize() {
+        return lengths.length;
+    }
+
+    public String toBitString(int symbol) {
+        StringBuilder bits = new StringBuilder(lengths[symbol]);
+        for (int i = lengths[symbol] - 1; i >= 0; i--) {
+            bits.append((codes[symbol] >>> i) & 1);
+        }
+        return bits.toString();
+    }
+
+    // Resolves codes up to tableBits long with one lookup, longer ones through the canonical ranges
+    public int decodeSymbol(BitReader reader) throws IOException {
+        int entry = decodeTable[(int)reader.peekBits(tableBits)];
+        if (entry != 0) {
+            reader.skipBits(entry & 0xFF);
+            return entry >>> 8;
+        }
+        return decodeLongSymbol(reader);
+    }
+
+    private int decodeLongSymbol(BitReader reader) throws IOException {
+        for (int len = tableBits + 1; len <= Math.min(maxLength, MAX_PEEK_BITS); len++) {
+            long offset = reader.peekBits(len) - firstCodes[len];
+            if (offset >= 0 && offset < lengthCounts[len]) {
+                reader.skipBits(len);
+                return sortedSymbols[firstIndexes[len] + (int)offset];
+            }
+        }
+        if (maxLength > MAX_PEEK_BITS) {
+            // Codes longer than the bit buffer only occur on pathological inputs
+            long code = reader.readBits(MAX_PEEK_BITS);
+            for (int len = MAX_PEEK_BITS + 1; len <= maxLength; len++) {
+                code = (code << 1) | reader.readBit();
+                long offset = code - firstCodes[len];
+                if (offset >= 0 && offset < lengthCounts[len]) {
+                    return sortedSymbols[firstIndexes[len] + (int)offset];
+                }
+            }
+        }
+        throw new IOException("invalid Huffman code in bitstream");
+    }
+
+    public void writeTable(BitWriter writer) throws IOException {
+        writeTable(lengths, writer);
+    }
+
+    // Table layout: symbol count (32 bits), then (symbol, code length) pairs in ascending symbol order
+    static void writeTable(int[] lengths, BitWriter writer) throws IOException {
+        int symbolBits = symbolBits(lengths.length);
+        writer.writeBits(symbolCount(lengths), 32);
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] > 0) {
+                writer.writeBits(symbol, symbolBits);
+                writer.writeBits(lengths[symbol], 8);
+            }
+        }
+    }
+
+    // FNV-1a hash of the code lengths: equal fingerprints mean interchangeable codes
+    public long getFingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (int length : lengths) {
+            hash = (hash ^ length) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Size of the table as written by writeTable
+    public long getTableBits() {
+        return tableBits(lengths);
+    }
+
+    static long tableBits(int[] lengths) {
+        return 32 + (long)symbolCount(lengths) * (symbolBits(lengths.length) + 8);
+    }
+
+    private static int symbolCount(int[] lengths) {
+        int count = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static HuffmanCode readTable(BitReader reader, int alphabetSize) throws IOException {
+        int symbolBits = symbolBits(alphabetSize);
+        int[] lengths = new int[alphabetSize];
+        long symbolCount = reader.readBits(32);
+        if (symbolCount > alphabetSize) {
+            throw new IOException("corrupted code table: " + symbolCount + " symbols");
+        }
+        for (long i = 0; i < symbolCount; i++) {
+            int symbol = (int)reader.readBits(symbolBits);
+            int length = (int)reader.readBits(8);
+            if (symbol >= alphabetSize || length == 0 || length > MAX_CODE_LENGTH) {
+                throw new IOException("corrupted code table entry: symbol " + symbol + ", length " + length);
+            }
+            lengths[symbol] = length;
+        }
+        if (!isPrefixFree(lengths)) {
+            throw new IOException("corrupted code table: code lengths are over-subscribed");
+        }
+        return new HuffmanCode(lengths);
+    }
+
+    // Kraft inequality: the lengths leave room for a prefix code, sum of 2^-length <= 1
+    static boolean isPrefixFree(int[] lengths) {
+        int[] counts = new int[MAX_CODE_LENGTH + 1];
+        for (int length : lengths) {
+            counts[length]++;
+        }
+        long free = 1;
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            free = 2 * free - counts[len];
+            if (free < 0) {
+                return false;
+            }
+            if (free >= lengths.length) {
+                // More free codes than symbols: no later length can over-subscribe
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private static int symbolBits(int alphabetSize) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(alphabetSize - 1));
+    }
+}
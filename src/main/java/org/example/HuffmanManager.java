@@ -1,286 +1,638 @@
 package org.example;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32C;
 
 public class HuffmanManager {
 
-    private String fileContents;
-    private Map<Integer, Integer> frequencies;
-    private int encodedFileSize;
+    static final String CODEC_NAME = "HUFFMAN";
+    static final int MAGIC = 0x4843; // "HC"
+    static final int VERSION = 7;
+    // How the header carries the code: the table itself, or the id of a table in the TableCache
+    static final int TABLE_INLINE = 0;
+    static final int TABLE_CACHED = 1;
+    // Table over ALPHABET_SIZE + 1 symbols: bytes missing from a sample are coded as ESCAPE + 8 raw bits
+    static final int TABLE_ESCAPED = 2;
+    static final int ALPHABET_SIZE = 256;
+    static final int ESCAPE = ALPHABET_SIZE;
+    // An escaped byte must still fit one 64-bit write
+    static final int MAX_ESCAPED_CODE_LENGTH = HuffmanCode.MAX_CODE_LENGTH - 8;
+    static final int BLOCK_SIZE = 1 << 20;
+
+    private final MappedSource source;
+    private final CodingListener listener;
+    private final ExecutorService pool;
+    private final int workers;
+    private long originalLength;
+    // The counts the code is built from: of the whole source, or of a sample of it
+    private final long[] frequencies;
+    private final boolean sampled;
+    // A sample that covered the whole source has no missing symbols, only absent ones
+    private boolean sampleComplete;
+    // Counts of the whole source; taken during encoding when the code was built from a sample
+    private long[] exactFrequencies;
+    private long escapedSymbols;
+    private long encodedFileSize;
     private double entropy = 0;
     private double avgWordLength = 0;
 //    private BinTree huffmanTree;
-    private Map<Integer, String> huffmanTable;
+    private HuffmanCode huffmanCode;
+    private String tableId;
+    private int maxCodeLength = HuffmanCode.MAX_CODE_LENGTH;
+    // Average word length of the code without the length limit, -1 if not known (cached table)
+    private double unlimitedAvgWordLength = -1;
+    // Code word and length per byte value (escape included), precomputed for the encode loop
+    private long[] codeWords;
+    private int[] codeLengths;
+    private int longestCodeWord;
+    // Per worker thread and shared by all files, so a long-lived pool stops allocating output buffers
+    private static final ThreadLocal<ByteBuffer> encodeBuffers = new ThreadLocal<>();
+
+    public HuffmanManager(MappedSource source, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        this.source = source;
+        this.listener = listener;
+        this.pool = pool;
+        this.workers = workers;
+        this.originalLength = source.length();
+
+        this.frequencies = FrequencyCounter.count(source, pool, workers);
+        this.exactFrequencies = frequencies;
+        this.sampled = false;
+
+        listener.onFrequencies(frequencies, originalLength);
+    }
 
-    public HuffmanManager(BufferedReader reader) throws IOException {
-        StringBuilder fileContentBuilder = new StringBuilder("");
-        String tmp = reader.readLine();
+    /*
+     * Builds the code from a sample of about ratio * length bytes instead of a full counting pass,
+     * so the source is only read once, by the encoder. The exact counts are gathered while encoding
+     * and give the loss against a code from the full histogram (see getExactAvgWordLength).
+     */
+    public HuffmanManager(MappedSource source, ExecutorService pool, int workers, CodingListener listener,
+                          double sampleRatio, FrequencyCounter.SampleMode sampleMode) throws IOException {
+        if (!(sampleRatio > 0 && sampleRatio <= 1)) {
+            throw new IllegalArgumentException("the sample ratio must be in (0, 1], got " + sampleRatio);
+        }
+        this.source = source;
+        this.listener = listener;
+        this.pool = pool;
+        this.workers = workers;
+        this.originalLength = source.length();
+
+        this.frequencies = FrequencyCounter.sample(source, pool, workers, sampleRatio, sampleMode);
+        this.sampled = true;
+
+        long sampleLength = 0;
+        for (long count : frequencies) {
+            sampleLength += count;
+        }
+        this.sampleComplete = sampleLength == originalLength;
+        listener.onFrequencies(frequencies, sampleLength);
+    }
 
-        while(tmp != null) {
-            fileContentBuilder.append(tmp);
-            tmp = reader.readLine();
+    // Both statistics start from zero, so encoding again (as the benchmarks do) does not add up
+    private void calculateEntropy() {
+        this.entropy = 0;
+        for (int key = 0; key < ALPHABET_SIZE; key++) {
+            if (exactFrequencies[key] == 0) {
+                continue;
+            }
+            double charProbability = (double)exactFrequencies[key] / originalLength;
+            double charEntropy = charProbability * (Math.log10(1 / charProbability) / Math.log10(2));
+            this.entropy += charEntropy;
         }
+    }
 
-        this.fileContents = fileContentBuilder.toString();
-        this.frequencies = generateFrequencies(fileContentBuilder);
+    // Codes longer than maxCodeLength bits are avoided with package-merge (at some loss of ratio)
+    public void setMaxCodeLength(int maxCodeLength) {
+        checkMaxCodeLength(maxCodeLength);
+        this.maxCodeLength = maxCodeLength;
+    }
 
-        if (Main.arguments.debug){
-            logFrequencyDescription();
+    static void checkMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 8 || maxCodeLength > HuffmanCode.MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("the maximum code length must be between 8 and "
+                    + HuffmanCode.MAX_CODE_LENGTH + " bits for a 256-symbol alphabet");
         }
+    }
 
+    public void generateHuffmanCode() {
+        if (sampled && !sampleComplete && hasMissingSymbols()) {
+            generateEscapedCode();
+            return;
+        }
+        int[] lengths = codeLengths(frequencies, listener);
+        this.unlimitedAvgWordLength = sampled ? -1 : averageLength(lengths);
+        setCode(new HuffmanCode(limitLengths(lengths, frequencies)));
     }
 
-    private void calculateEntropy() {
-        for (int key : frequencies.keySet()) {
-            double charProbability = (double)frequencies.get(key) / fileContents.length();
-            double charEntropy = charProbability * (Math.log10(1 / charProbability) / Math.log10(2));
-            this.entropy += charEntropy;
+    private boolean hasMissingSymbols() {
+        for (long count : frequencies) {
+            if (count == 0) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private Map<Integer, Integer> generateFrequencies(StringBuilder builder) {
-        Map<Integer, Integer> frequencies = new HashMap<>();
-        for(int i = 0; i < builder.length(); i++) {
-            int current = builder.charAt(i);
-            frequencies.put(current, frequencies.containsKey(current) ? frequencies.get(current) + 1 : 1);
+    /*
+     * The escape gets the weight of the bytes seen exactly once in the sample (Good-Turing: about
+     * as many bytes of the whole input are of kinds the sample missed), at least 1.
+     */
+    private void generateEscapedCode() {
+        long[] counts = Arrays.copyOf(frequencies, ALPHABET_SIZE + 1);
+        long singletons = 0;
+        for (long count : frequencies) {
+            if (count == 1) {
+                singletons++;
+            }
         }
-        return frequencies;
+        counts[ESCAPE] = Math.max(1, singletons);
+        int[] lengths = limitLengths(codeLengths(counts, listener), counts, Math.min(maxCodeLength, MAX_ESCAPED_CODE_LENGTH));
+        setCode(new HuffmanCode(lengths));
     }
 
-    public void logFrequencyDescription() {
-        System.out.println("[LOG] --- GENERATING FREQUENCIES INFORMATION");
-        System.out.println("[LOG] --- ");
-        for(Map.Entry<Integer, Integer> entry: frequencies.entrySet()) {
-            int key = entry.getKey();
-            int value = entry.getValue();
-            System.out.printf("[LOG] --- %c, P(%c) = %.4f (dec: %d, bin: %s)%n",
-                    key, key, (double)value / fileContents.length(),
-                    key, Integer.toBinaryString(key));
+    private int[] limitLengths(int[] lengths, long[] counts) {
+        return limitLengths(lengths, counts, maxCodeLength);
+    }
+
+    static int[] limitLengths(int[] lengths, long[] counts, int maxCodeLength) {
+        for (int length : lengths) {
+            if (length > maxCodeLength) {
+                return limitedCodeLengths(counts, maxCodeLength);
+            }
         }
-        System.out.println("[LOG] --- ===================================================");
+        return lengths;
     }
 
-    public void generateHuffmanCode() {
-        List<BinTree> nodes = new ArrayList<>();
+    private double averageLength(int[] lengths) {
+        double bits = 0;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            bits += (double)frequencies[symbol] * lengths[symbol];
+        }
+        return originalLength == 0 ? 0 : bits / originalLength;
+    }
 
-        // Initialize the list and sort in desc. order
-        for(Map.Entry<Integer, Integer> entry : frequencies.entrySet()) {
-            nodes.add(new BinTree(Character.toString(entry.getKey()), entry.getValue()));
+    /*
+     * Takes the code from the cache instead of building a tree, and the encoded file refers to it
+     * by id instead of carrying the table. A missing table is trained on this file and stored.
+     * Cached tables give every byte value a code, so they fit any later input.
+     */
+    public void useCachedTable(TableCache cache, String tableId) throws IOException {
+        HuffmanCode code = cache.get(tableId);
+        if (code == null) {
+            long[] counts = frequencies.clone();
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                counts[symbol] = Math.max(counts[symbol], 1);
+            }
+            code = new HuffmanCode(limitLengths(codeLengths(counts, listener), counts));
+            cache.put(tableId, code);
         }
-        nodes.sort((n1, n2) -> n2.getWeight() - n1.getWeight());
+        this.tableId = tableId;
+        setCode(code);
+    }
 
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- GENERATING HUFFMAN CODE");
-            System.out.println("[LOG] --- ");
-            System.out.print("[LOG] --- ");
-            for (BinTree node : nodes) {
-                System.out.printf("%s ( %d )  ", node.getData(), node.getWeight());
+    private void setCode(HuffmanCode code) {
+        this.huffmanCode = code;
+        this.codeLengths = new int[ALPHABET_SIZE];
+        this.codeWords = new long[ALPHABET_SIZE];
+        boolean escaped = code.getAlphabetSize() > ALPHABET_SIZE;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            if (escaped && code.getLength(symbol) == 0) {
+                codeLengths[symbol] = code.getLength(ESCAPE) + 8;
+                codeWords[symbol] = (code.getCode(ESCAPE) << 8) | symbol;
+            } else {
+                codeLengths[symbol] = code.getLength(symbol);
+                codeWords[symbol] = code.getCode(symbol);
             }
-            System.out.println();
-            System.out.println("[LOG] --- Current list size: " + nodes.size());
-            System.out.println("[LOG] --- ");
+            longestCodeWord = Math.max(longestCodeWord, codeLengths[symbol]);
         }
 
+        listener.onCodeGenerated(huffmanCode);
+    }
 
-        int i;
-        while (nodes.size() > 1) {
+    // Huffman code length of every symbol for the given counts (0 for symbols that do not occur)
+    static int[] codeLengths(long[] frequencies, CodingListener listener) {
+        List<BinTree> leafList = new ArrayList<>();
 
-            i = nodes.size() - 1;
-            BinTree left = nodes.get(i - 1);
-            BinTree right = nodes.get(i);
+        // Initialize the leaves and sort in asc. order (ties by symbol, so the tree is deterministic)
+        for(int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                leafList.add(new BinTree(symbol, frequencies[symbol]));
+            }
+        }
+        BinTree[] leaves = leafList.toArray(new BinTree[0]);
+        Arrays.sort(leaves, Comparator.comparingLong(BinTree::getWeight).thenComparingInt(BinTree::getSymbol));
 
-            BinTree combinedTree = new BinTree(
-                    left.getData() + right.getData(),
-                    left.getWeight() + right.getWeight(),
-                    left, right);
+        listener.onLeaves(leaves);
+        BinTree root = buildTree(leaves, listener);
 
-            // After inserting the target at position moves any subsequent elements towards the end of list
-            nodes.set(i - 1, combinedTree);
-            nodes.remove(i);
-            i--;
+        // Only the code lengths are taken from the tree; the codes themselves are canonical
+        int[] codeLengths = new int[frequencies.length];
+        if (root != null) {
+            collectCodeLengths(root, 0, codeLengths);
+        }
+        return codeLengths;
+    }
 
-            if (nodes.size() > 1) {
-                while(i >= 1 && nodes.get(i).getWeight() > nodes.get(i - 1).getWeight()) {
-                    nodes.remove(i);
-                    nodes.add(i - 1, combinedTree);
-                    i--;
-                }
+    /*
+     * Two-queue construction: the leaves are already sorted by weight and merged nodes are created
+     * in non-decreasing weight order, so the two lightest nodes are always at the head of one of
+     * the two queues. Linear after the sort.
+     */
+    static BinTree buildTree(BinTree[] leaves, CodingListener listener) {
+        if (leaves.length == 0) {
+            return null;
+        }
+        BinTree[] merged = new BinTree[leaves.length - 1];
+        int leafHead = 0;
+        int mergedHead = 0;
+        int mergedTail = 0;
+
+        while (mergedTail < merged.length) {
+            BinTree left;
+            BinTree right;
+            if (mergedHead == mergedTail || (leafHead < leaves.length
+                    && leaves[leafHead].getWeight() <= merged[mergedHead].getWeight())) {
+                left = leaves[leafHead++];
+            } else {
+                left = merged[mergedHead++];
             }
+            if (mergedHead == mergedTail || (leafHead < leaves.length
+                    && leaves[leafHead].getWeight() <= merged[mergedHead].getWeight())) {
+                right = leaves[leafHead++];
+            } else {
+                right = merged[mergedHead++];
+            }
+            merged[mergedTail++] = new BinTree(left.getWeight() + right.getWeight(), left, right);
+            listener.onMerge(left, right, leaves.length - leafHead + mergedTail - mergedHead);
+        }
+        return merged.length == 0 ? leaves[0] : merged[merged.length - 1];
+    }
 
-            if (Main.arguments.debug) {
-                System.out.print("[LOG] --- ");
-                for(BinTree tree : nodes) {
-                    System.out.printf("%s ( %d )  ", tree.getData(), tree.getWeight());
-                }
-                System.out.println();
-                System.out.println("[LOG] --- Current list size: " + nodes.size());
-                System.out.println("[LOG] --- ");
+    /*
+     * Package-merge (Larmore and Hirschberg): optimal code lengths with none above maxLength.
+     * The deepest level holds the leaves sorted by weight; every shallower level merges the leaves
+     * with the pairs ("packages") of the level below, again by weight. The first 2n - 2 items of
+     * level 1 are selected, and a symbol's code length is the number of levels at which its leaf
+     * is selected. Selected items always form a prefix of a level, and its p packages select the
+     * first 2p items of the level below, so one counting pass per level suffices: O(n * maxLength).
+     */
+    static int[] limitedCodeLengths(long[] frequencies, int maxLength) {
+        List<Integer> present = new ArrayList<>();
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                present.add(symbol);
+            }
+        }
+        // Same order as the leaves of the tree: by weight, ties by symbol
+        present.sort(Comparator.comparingLong((Integer symbol) -> frequencies[symbol]).thenComparingInt(symbol -> symbol));
+        int n = present.size();
+        int[] symbols = new int[n];
+        for (int i = 0; i < n; i++) {
+            symbols[i] = present.get(i);
+        }
+        int[] lengths = new int[frequencies.length];
+        if (n <= 1) {
+            if (n == 1) {
+                lengths[symbols[0]] = 1;
             }
+            return lengths;
+        }
+        if (maxLength < 64 && n > (1L << maxLength)) {
+            throw new IllegalArgumentException(n + " symbols do not fit in codes of " + maxLength + " bits");
         }
 
-//        this.huffmanTree = nodes.get(0);
-
-        // Parse the tree to get the map that will represent the Huffman code:
-        Map<Integer, String> huffmanMap = new HashMap<>();
-        for (int searchChar : frequencies.keySet()) {
-            BinTree baseLeft = nodes.get(0).getLeft();
-            BinTree baseRight = nodes.get(0).getRight();
-            StringBuilder accumulator = new StringBuilder("");
-            String searchString = String.format("%c", searchChar);
-
-            while (true) {
-                if (baseLeft.getData().equals(searchString)) {
-                    accumulator.append("0");
-                    huffmanMap.put(searchChar, accumulator.toString());
-                    break;
-                } else if (baseRight.getData().equals(searchString)) {
-                    accumulator.append("1");
-                    huffmanMap.put(searchChar, accumulator.toString());
-                    break;
-                } else if (baseLeft.getData().contains(searchString)) {
-                    accumulator.append("0");
-                    baseRight = baseLeft.getRight();
-                    baseLeft = baseLeft.getLeft();
-                } else if (baseRight.getData().contains(searchString)) {
-                    accumulator.append("1");
-                    baseLeft = baseRight.getLeft();
-                    baseRight = baseRight.getRight();
+        long[] leafWeights = new long[n];
+        for (int i = 0; i < n; i++) {
+            leafWeights[i] = frequencies[symbols[i]];
+        }
+        long[][] weights = new long[maxLength + 1][];
+        boolean[][] isPackage = new boolean[maxLength + 1][];
+        weights[maxLength] = leafWeights;
+        isPackage[maxLength] = new boolean[n];
+        for (int level = maxLength - 1; level >= 1; level--) {
+            long[] below = weights[level + 1];
+            int packages = below.length / 2;
+            weights[level] = new long[n + packages];
+            isPackage[level] = new boolean[n + packages];
+            int leaf = 0;
+            int pkg = 0;
+            for (int i = 0; i < n + packages; i++) {
+                long packageWeight = pkg < packages ? below[2 * pkg] + below[2 * pkg + 1] : Long.MAX_VALUE;
+                if (leaf < n && leafWeights[leaf] <= packageWeight) {
+                    weights[level][i] = leafWeights[leaf++];
+                } else {
+                    weights[level][i] = packageWeight;
+                    isPackage[level][i] = true;
+                    pkg++;
                 }
             }
         }
 
-        if (Main.arguments.debug) {
-            System.out.print("[LOG] --- Generated: ");
-            for (int key : huffmanMap.keySet()) {
-                System.out.printf("%c(%s)  ", key, huffmanMap.get(key));
+        int selected = 2 * n - 2;
+        for (int level = 1; level <= maxLength && selected > 0; level++) {
+            int packages = 0;
+            for (int i = 0; i < selected; i++) {
+                if (isPackage[level][i]) {
+                    packages++;
+                } else {
+                    lengths[symbols[i - packages]]++;
+                }
             }
-            System.out.println();
-            System.out.println("[LOG] --- ===================================================");
+            selected = 2 * packages;
         }
-        this.huffmanTable = huffmanMap;
+        return lengths;
     }
 
-    public void encodeToFile(BufferedWriter writer) throws IOException {
+    private static void collectCodeLengths(BinTree node, int depth, int[] codeLengths) {
+        if (node.isLeaf()) {
+            // A lone symbol still needs one bit per occurrence
+            codeLengths[node.getSymbol()] = Math.max(depth, 1);
+            return;
+        }
+        collectCodeLengths(node.getLeft(), depth + 1, codeLengths);
+        collectCodeLengths(node.getRight(), depth + 1, codeLengths);
+    }
 
-        StringBuilder encFileContents = new StringBuilder("");
-        String totalNumbers = Integer.toBinaryString(huffmanTable.keySet().size());
-        encFileContents.append(totalNumbers);
-        encFileContents.append("\n");
+    /*
+     * Layout: header (magic, version, original length, block size, code length table or the id and
+     * fingerprint of a cached table), then the blocks, each an independent byte-aligned bitstream,
+     * then the block index and footer with the checksums (see BlockIndex).
+     */
+    public void encodeToFile(OutputStream out) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(headerBytes);
+        writer.writeBits(MAGIC, 16);
+        writer.writeBits(VERSION, 8);
+        writer.writeBits(originalLength, 64);
+        writer.writeBits(BLOCK_SIZE, 32);
+        if (tableId == null) {
+            writer.writeBits(huffmanCode.getAlphabetSize() > ALPHABET_SIZE ? TABLE_ESCAPED : TABLE_INLINE, 8);
+            huffmanCode.writeTable(writer);
+        } else {
+            writer.writeBits(TABLE_CACHED, 8);
+            byte[] id = tableId.getBytes(StandardCharsets.US_ASCII);
+            writer.writeBits(id.length, 8);
+            for (byte b : id) {
+                writer.writeBits(b, 8);
+            }
+            writer.writeBits(huffmanCode.getFingerprint(), 64);
+        }
+        writer.flush();
+        byte[] header = headerBytes.toByteArray();
+        out.write(header);
+
+        listener.onEncodeStart(CODEC_NAME, originalLength, huffmanCode);
+
+        int blockCount = BlockIndex.blockCount(originalLength, BLOCK_SIZE);
+        long[] blockOffsets = new long[blockCount];
+        int[] blockLengths = new int[blockCount];
+        int[] blockChecksums = new int[blockCount];
+        CRC32C content = new CRC32C();
+        long[] position = { header.length };
+        /*
+         * With a sampled code the exact histogram is taken from the blocks as they are encoded, into
+         * one lane table per worker thread, so memory does not grow with the input.
+         */
+        List<long[]> workerLanes = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<long[]> lanes = ThreadLocal.withInitial(() -> {
+            long[] table = new long[FrequencyCounter.LANES * ALPHABET_SIZE];
+            workerLanes.add(table);
+            return table;
+        });
+
+        BlockPipeline.run(pool, blockCount, 2 * workers,
+                block -> {
+                    ByteBuffer data = source.block(block, BLOCK_SIZE);
+                    if (sampled) {
+                        FrequencyCounter.countBlock(data, lanes.get());
+                    }
+                    return encodeBlock(data);
+                },
+                (block, encoded) -> {
+                    out.write(encoded);
+                    blockOffsets[block] = position[0];
+                    blockLengths[block] = encoded.length;
+                    blockChecksums[block] = BlockIndex.checksum(encoded, 0, encoded.length);
+                    position[0] += encoded.length;
+                    ByteBuffer data = source.block(block, BLOCK_SIZE);
+                    listener.onBlock(block, data.limit(), encoded.length);
+                    content.update(data);
+                });
+
+        BlockIndex.write(out, blockOffsets, blockLengths, blockChecksums, position[0],
+                BlockIndex.checksum(header, 0, header.length), (int)content.getValue());
+
+        this.encodedFileSize = (position[0] + BlockIndex.sizeInBytes(blockCount)) * 8;
+        listener.onFinish(CODEC_NAME);
+        if (sampled) {
+            // Every task has finished, so the worker tables are complete
+            this.exactFrequencies = new long[ALPHABET_SIZE];
+            for (long[] table : workerLanes) {
+                long[] counts = FrequencyCounter.foldLanes(table);
+                for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                    exactFrequencies[symbol] += counts[symbol];
+                }
+            }
+            this.escapedSymbols = 0;
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                if (huffmanCode.getAlphabetSize() > ALPHABET_SIZE && huffmanCode.getLength(symbol) == 0) {
+                    escapedSymbols += exactFrequencies[symbol];
+                }
+            }
+        }
+        calculateEntropy();
+        calculateAvgWordLength();
+    }
 
-        int totalBitsInFile = totalNumbers.length();
+    /*
+     * The hot loop only indexes the two code word arrays and shifts into the writer's accumulator;
+     * the output buffer is reused by the worker thread, so the single allocation per block is the
+     * final copy handed to the pipeline.
+     */
+    private byte[] encodeBlock(ByteBuffer block) throws IOException {
+        ByteBuffer output = blockBuffer(block.limit());
+        BitWriter writer = new BitWriter(output);
+        encodeBytes(block, codeWords, codeLengths, writer);
+        writer.flush();
+        return Arrays.copyOf(output.array(), output.position());
+    }
 
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- ENCODING TO A FILE (WITH ENCODING TABLE)");
-            System.out.println("[LOG] --- ");
-            System.out.println("[LOG] --- " + totalNumbers);
+    static void encodeBytes(ByteBuffer data, long[] codeWords, int[] codeLengths, BitWriter writer) throws IOException {
+        for (int i = 0, limit = data.limit(); i < limit; i++) {
+            int currentCharacter = data.get(i) & 0xFF;
+            writer.writeBits(codeWords[currentCharacter], codeLengths[currentCharacter]);
         }
+    }
 
-        for (int character : huffmanTable.keySet()) {
-            String currentCharacter = Integer.toBinaryString(character);
-            String huffmanEquivalent = huffmanTable.get(character);
-            encFileContents.append(currentCharacter);
-            encFileContents.append("_");
-            encFileContents.append(huffmanEquivalent);
-            encFileContents.append("\n");
+    // Worst case for a block is every byte taking the longest code
+    private ByteBuffer blockBuffer(int blockLength) {
+        return encodeBuffer((int)(((long)blockLength * longestCodeWord + 7) / 8) + 8);
+    }
 
-            if (Main.arguments.debug) {
-                System.out.print("[LOG] --- " + Integer.toBinaryString(character));
-                System.out.print("_");
-                System.out.println(huffmanTable.get(character));
-            }
-            totalBitsInFile += currentCharacter.length();
-            totalBitsInFile += huffmanEquivalent.length();
-            totalBitsInFile += Integer.toBinaryString('_').length();
+    // The calling thread's output buffer, cleared and grown to at least capacity bytes
+    static ByteBuffer encodeBuffer(int capacity) {
+        ByteBuffer buffer = encodeBuffers.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+            encodeBuffers.set(buffer);
         }
+        return buffer.clear();
+    }
 
-        if (Main.arguments.debug) {
-            System.out.print("[LOG] --- ");
-        }
-        for (int i = 0; i < fileContents.length(); i++) {
-            int currentCharacter = fileContents.charAt(i);
-            String huffmanEquivalent = huffmanTable.get(currentCharacter);
-            encFileContents.append(huffmanEquivalent);
-            if (Main.arguments.debug) {
-                System.out.print(huffmanTable.get(currentCharacter));
+    private void calculateAvgWordLength() {
+        this.avgWordLength = 0;
+        for (int originalChar = 0; originalChar < ALPHABET_SIZE; originalChar++) {
+            if (exactFrequencies[originalChar] == 0) {
+                continue;
             }
-            totalBitsInFile += huffmanEquivalent.length();
+            double charProb = (double)exactFrequencies[originalChar] / originalLength;
+            this.avgWordLength += codeLengths[originalChar] * charProb;
         }
+    }
 
-        this.encodedFileSize = totalBitsInFile;
-        if(Main.arguments.debug) {
-            System.out.println("\n[LOG] --- ===================================================");
+    /*
+     * Average word length of the code the exact counts would have given (same length limit); the
+     * gap to getAvgWordLength is what sampling cost. -1 unless the code was built from a sample.
+     */
+    public double getExactAvgWordLength() {
+        if (!sampled || originalLength == 0) {
+            return -1;
         }
-        writer.write(encFileContents.toString());
-        calculateEntropy();
-        calculateAvgWordLength();
+        int[] lengths = limitLengths(codeLengths(exactFrequencies, CodingListener.NONE), exactFrequencies, maxCodeLength);
+        double bits = 0;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            bits += (double)exactFrequencies[symbol] * lengths[symbol];
+        }
+        return bits / originalLength;
     }
 
-    private void calculateAvgWordLength() {
-        for (int originalChar : frequencies.keySet()) {
-            double charProb = (double)frequencies.get(originalChar) / fileContents.length();
-            String huffmanEquivalent = huffmanTable.get(originalChar);
-            this.avgWordLength += huffmanEquivalent.length() * charProb;
-        }
-    }
-
-    public static void decodeFile(BufferedReader reader, BufferedWriter writer) throws IOException {
-        Map<String, Integer> huffmanToChar = new HashMap<>();
-        StringBuilder decodedMessage = new StringBuilder("");
-        StringBuilder fileMessage = new StringBuilder("");
-        StringBuilder accumulator = new StringBuilder("");
-
-
-        // Read the encoding table:
-        String loopTerminatorString = reader.readLine();
-        int loopTerminator = Integer.parseInt(loopTerminatorString, 2);
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- DECODING HUFFMAN FILE");
-            System.out.println("[LOG] --- ");
-            System.out.printf("[LOG] --- # of distinct characters: %d (%s)%n", loopTerminator, loopTerminatorString);
-        }
-        for (int i = 0; i < loopTerminator; i++) {
-            String currentLine = reader.readLine();
-            String[] currentTableRow = currentLine.split("_");
-            int reps = Integer.parseInt(currentTableRow[0], 2);
-            huffmanToChar.put(currentTableRow[1], reps);
-            if (Main.arguments.debug) {
-                System.out.printf("[LOG] --- Current line: %s [reps: %d(%s), char: %s] %n",
-                        currentLine, reps, currentTableRow[0], currentTableRow[1]);
-            }
+    // Bytes of the source coded through the escape, as the sample did not contain them
+    public long getEscapedSymbols() {
+        return escapedSymbols;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    public static long decodeFile(Path encodedFile, OutputStream out, ExecutorService pool, int workers,
+                                  CodingListener listener) throws IOException {
+        return decodeFile(encodedFile, out, pool, workers, listener, null);
+    }
+
+    // Returns the number of decoded bytes; the cache resolves files that refer to a cached table
+    public static long decodeFile(Path encodedFile, OutputStream out, ExecutorService pool, int workers,
+                                  CodingListener listener, TableCache tableCache) throws IOException {
+        try (FileChannel channel = FileChannel.open(encodedFile, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, tableCache);
+            BlockIndex index = header.index;
+
+            listener.onDecodeStart(CODEC_NAME, header.originalLength, header.code);
+
+            CRC32C content = new CRC32C();
+            BlockPipeline.run(pool, index.blockCount(), 2 * workers,
+                    block -> decodeBlock(header.code, index.readBlock(channel, block), index.decodedLength(block)),
+                    (block, decoded) -> {
+                        out.write(decoded);
+                        content.update(decoded, 0, decoded.length);
+                        listener.onBlock(block, index.compressedLength(block), decoded.length);
+                    });
+            index.checkContent(content);
+            listener.onFinish(CODEC_NAME);
+            return header.originalLength;
         }
+    }
 
-        String currentLine;
-        while((currentLine = reader.readLine()) != null) {
-            fileMessage.append(currentLine);
+    // What the header of an encoded file says, with the canonical code rebuilt from the code lengths
+    static class Header {
+        final long originalLength;
+        final int blockSize;
+        final HuffmanCode code;
+        final BlockIndex index;
+
+        Header(long originalLength, int blockSize, HuffmanCode code, BlockIndex index) {
+            this.originalLength = originalLength;
+            this.blockSize = blockSize;
+            this.code = code;
+            this.index = index;
         }
+    }
 
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- ");
-            System.out.println("[LOG] --- Message:");
+    static Header readHeader(FileChannel channel, TableCache tableCache) throws IOException {
+        BitReader reader = new BitReader(Channels.newInputStream(channel.position(0)));
+        if (reader.readBits(16) != MAGIC) {
+            throw new IOException("not a Huffman-encoded file (bad magic)");
         }
-        for(int i = 0; i < fileMessage.length(); i++) {
-            accumulator.append(fileMessage.charAt(i));
-            if (huffmanToChar.containsKey(accumulator.toString())) {
-                int respectiveChar = huffmanToChar.get(accumulator.toString());
-                decodedMessage.append(Character.toString(respectiveChar));
-                if (Main.arguments.debug) {
-                    System.out.printf("[LOG] --- %s -> %c %n", accumulator.toString(), respectiveChar);
-                }
-                accumulator = new StringBuilder("");
-            }
+        int version = (int)reader.readBits(8);
+        if (version != VERSION) {
+            throw new IOException("unsupported Huffman file version: " + version);
         }
-        System.out.println("[LOG] --- ===================================================");
+        long originalLength = reader.readBits(64);
+        int blockSize = (int)reader.readBits(32);
+        BlockIndex index = BlockIndex.read(channel, originalLength, blockSize, "Huffman");
+        return new Header(originalLength, blockSize, readCode(reader, tableCache), index);
+    }
+
+    static byte[] decodeBlock(HuffmanCode huffmanCode, byte[] encoded, int decodedLength) throws IOException {
+        return decodeBlock(huffmanCode, new BitReader(encoded, 0, encoded.length), decodedLength);
+    }
+
+    static byte[] decodeBlock(HuffmanCode huffmanCode, BitReader reader, int decodedLength) throws IOException {
+        byte[] decoded = new byte[decodedLength];
+        for (int i = 0; i < decodedLength; i++) {
+            int symbol = huffmanCode.decodeSymbol(reader);
+            decoded[i] = (byte)(symbol == ESCAPE ? reader.readBits(8) : symbol);
+        }
+        return decoded;
+    }
 
-        writer.write(decodedMessage.toString());
+    private static HuffmanCode readCode(BitReader reader, TableCache tableCache) throws IOException {
+        int tableMode = (int)reader.readBits(8);
+        if (tableMode == TABLE_INLINE) {
+            return HuffmanCode.readTable(reader, ALPHABET_SIZE);
+        }
+        if (tableMode == TABLE_ESCAPED) {
+            return HuffmanCode.readTable(reader, ALPHABET_SIZE + 1);
+        }
+        if (tableMode != TABLE_CACHED) {
+            throw new IOException("corrupted Huffman file: unknown table mode " + tableMode);
+        }
+        byte[] id = new byte[(int)reader.readBits(8)];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (byte)reader.readBits(8);
+        }
+        String tableId = new String(id, StandardCharsets.US_ASCII);
+        long fingerprint = reader.readBits(64);
+        HuffmanCode code = tableCache == null ? null : tableCache.get(tableId);
+        if (code == null) {
+            throw new IOException("the file was encoded with table \"" + tableId + "\", which is not in the table cache");
+        }
+        if (code.getFingerprint() != fingerprint) {
+            throw new IOException("table \"" + tableId + "\" in the cache differs from the one the file was encoded with");
+        }
+        return code;
     }
 
-    public int getEncodedFileSize() {
+    public long getEncodedFileSize() {
         return encodedFileSize;
     }
 
-    public String getFileContents() {
-        return fileContents;
+    public long getOriginalLength() {
+        return originalLength;
+    }
+
+    // Size of the source in bits, straight from the byte count
+    public long getOriginalFileSize() {
+        return originalLength * 8;
     }
 
     public double getEntropy() {
@@ -290,4 +642,12 @@ public class HuffmanManager {
     public double getAvgWordLength() {
         return avgWordLength;
     }
+
+    public double getUnlimitedAvgWordLength() {
+        return unlimitedAvgWordLength;
+    }
+
+    public int getMaxCodeLength() {
+        return huffmanCode.getMaxLength();
+    }
 }
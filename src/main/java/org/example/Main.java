@@ -4,9 +4,22 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     public static Args arguments;
+    // Debug output goes through an asynchronous sink; without -D the codecs get a no-op listener
+    static AsyncLogSink logSink;
+    static CodingListener listener = CodingListener.NONE;
+    static Metrics metrics = Metrics.NONE;
+    static TableCache tableCache;
 
     public static class Args {
         @Parameter(names = {"-h", "--help"}, description = "description of how to use the CLI", help = true, order = 1)
@@ -27,6 +40,72 @@ public class Main {
         @Parameter(names = {"-rle", "--rl-encoded"}, description = "run-length encoded file (only for decoding)", order = 2)
         public String rlFile;
 
+        @Parameter(names = {"-a", "--adaptive"}, description = "with -enc: write one file choosing stored/Huffman/run-length/run-length+Huffman per block", order = 2)
+        public boolean adaptive;
+
+        @Parameter(names = {"-ade", "--adaptive-encoded"}, description = "adaptive encoded file (only for decoding)", order = 2)
+        public String adFile;
+
+        @Parameter(names = {"-L", "--max-code-length"}, description = "with -enc: limit Huffman code words to this many bits (8-64), e.g. 12 or 15 for small decode tables", order = 2)
+        public Integer maxCodeLength;
+
+        @Parameter(names = {"--sample"}, description = "with -enc: build the Huffman code from this fraction of the input (0-1], e.g. 0.01, instead of counting every byte; bytes missing from the sample are escaped", order = 2)
+        public Double sample;
+
+        @Parameter(names = {"--sample-mode"}, description = "how --sample picks the 4 KB chunks it counts: STRIDED (evenly spaced) or RANDOM", order = 3)
+        public FrequencyCounter.SampleMode sampleMode = FrequencyCounter.SampleMode.STRIDED;
+
+        @Parameter(names = {"-o1", "--order1"}, description = "with -enc: Huffman-code every byte with a table chosen by the previous byte (order-1 context model)", order = 2)
+        public boolean order1;
+
+        @Parameter(names = {"-table", "--table"}, description = "with -enc: use the cached code table with this id (trained on the source and stored if missing); the file only refers to it", order = 2)
+        public String table;
+
+        @Parameter(names = {"--table-cache"}, description = "directory of the code table cache (default: ~/.codingmanager/tables)", order = 3)
+        public String tableCacheDir;
+
+        @Parameter(names = {"--table-cache-size"}, description = "number of tables kept in the cache; least recently used ones are deleted", order = 3)
+        public int tableCacheSize = 64;
+
+        @Parameter(names = {"-s", "--stream"}, description = "one-pass adaptive Huffman: with -enc encodes -sf (or stdin to stdout), with -dec decodes -hse (or stdin to stdout)", order = 2)
+        public boolean stream;
+
+        @Parameter(names = {"-hse", "--stream-encoded"}, description = "streaming Huffman encoded file (only for decoding)", order = 2)
+        public String hsFile;
+
+        @Parameter(names = {"-r", "--range"}, description = "with -dec -he/-ade: decode only <offset>:<length> bytes of the original, using the block index", order = 2)
+        public String range;
+
+        @Parameter(names = {"--verify"}, description = "with -dec: check the checksums of the -he/-rle/-ade file (or of a -b batch) without writing any output; -hse files are fully decoded", order = 2)
+        public boolean verify;
+
+        @Parameter(names = {"-b", "--batch"}, description = "with -enc/-dec: process every file in a directory, matching a glob, or listed on stdin (-)", order = 2)
+        public String batch;
+
+        @Parameter(names = {"-j", "--jobs"}, description = "number of files processed concurrently in batch mode", order = 3)
+        public int jobs = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"-w", "--workers"}, description = "number of worker threads for block-parallel Huffman encoding/decoding", order = 3)
+        public int workers = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--daemon"}, description = "run as a service taking encode/decode/verify requests from --client runs, on --socket or --port", order = 2)
+        public boolean daemon;
+
+        @Parameter(names = {"--client"}, description = "with -enc/-dec (and -b, -a, --verify): send the files to a running --daemon instead of coding them in this JVM", order = 2)
+        public boolean client;
+
+        @Parameter(names = {"--socket"}, description = "Unix domain socket of the daemon, only usable by its owner (default: ~/.codingmanager/daemon.sock)", order = 3)
+        public String socket;
+
+        @Parameter(names = {"--port"}, description = "use this localhost TCP port for the daemon instead of the socket; clients authenticate with a token only the owner can read (default port: 7425)", order = 3)
+        public Integer port;
+
+        @Parameter(names = {"-M", "--metrics"}, description = "append per-phase timings (wall time, throughput, bytes in/out, allocations) to this file", order = 3)
+        public String metricsFile;
+
+        @Parameter(names = {"--metrics-format"}, description = "format of the metrics file: JSON (one object per line) or CSV", order = 3)
+        public Metrics.Format metricsFormat = Metrics.Format.JSON;
+
         @Parameter(names = {"-D", "--debug"}, description = "enable logs for every step of encoding/decoding", order = 3)
         public boolean debug;
     }
@@ -37,18 +116,57 @@ public class Main {
         JCommander jc = JCommander.newBuilder().addObject(arguments).build();
         jc.parse(args);
 
+        if (arguments.debug) {
+            // Piping through stdout leaves stderr for the log
+            boolean pipe = arguments.stream && arguments.sourceFile == null && arguments.hsFile == null;
+            logSink = new AsyncLogSink(pipe ? System.err : System.out);
+            listener = new DebugListener(logSink);
+        }
+        tableCache = new TableCache(arguments.tableCacheDir != null ? Path.of(arguments.tableCacheDir)
+                : TableCache.defaultDirectory(), arguments.tableCacheSize);
+        if (arguments.metricsFile != null) {
+            try {
+                metrics = Metrics.open(Path.of(arguments.metricsFile), arguments.metricsFormat);
+            } catch (IOException e) {
+                System.out.println("[LOG] --- ERROR: could not open the metrics file " + arguments.metricsFile);
+            }
+        }
+
         if (args.length == 0) {
             jc.usage();
         } else {
             analyzeCmdArgs(jc, arguments);
         }
+
+        metrics.close();
+        if (logSink != null) {
+            logSink.close();
+        }
     }
 
     public static void analyzeCmdArgs(JCommander jc, Args arguments) {
         if (arguments.help) {
             jc.usage();
+        }  else if (arguments.daemon) {
+            runDaemon();
+        }  else if (arguments.client && (arguments.encode || arguments.decode)) {
+            runClient();
+        }  else if ((arguments.encode || arguments.decode) && arguments.batch != null) {
+            runBatch(arguments.batch, arguments.decode);
+        }  else if (arguments.decode && arguments.verify) {
+            verify();
+        }  else if (arguments.encode && arguments.stream) {
+            encodeStream(arguments.sourceFile);
+        }  else if (arguments.decode && (arguments.stream || arguments.hsFile != null)) {
+            decodeStream(arguments.hsFile);
+        }  else if (arguments.encode && arguments.sourceFile != null && arguments.adaptive) {
+            encodeAdaptive(arguments.sourceFile);
         }  else if (arguments.encode && arguments.sourceFile != null) {
             encodeHuffmanAndRunlength(arguments.sourceFile);
+        } else if (arguments.decode && arguments.range != null && (arguments.hFile != null || arguments.adFile != null)) {
+            decodeRange(arguments.adFile != null ? arguments.adFile : arguments.hFile, arguments.range);
+        } else if (arguments.decode && arguments.adFile != null) {
+            decodeAdaptive(arguments.adFile);
         } else if (arguments.decode && arguments.hFile != null && arguments.rlFile != null) {
             decodeHuffmanAndRunlength(arguments.hFile, arguments.rlFile);
         } else if (arguments.decode && arguments.hFile != null) {
@@ -60,43 +178,463 @@ public class Main {
         }
     }
 
+    public static void runBatch(String batch, boolean decode) {
+        BatchRunner runner = new BatchRunner(decode, arguments.adaptive, arguments.verify, arguments.jobs, arguments.workers, logSink);
+        try {
+            runner.run(batch);
+        } catch (IOException e) {
+            System.out.println("[LOG] --- ERROR: could not list the batch input " + batch + ": " + e.getMessage());
+        }
+        if (logSink != null) {
+            logSink.flush();
+        }
+        runner.printSummary();
+    }
+
+    // Serves requests until the process is stopped (SIGINT/SIGTERM)
+    public static void runDaemon() {
+        CodingDaemon daemon;
+        try {
+            daemon = CodingDaemon.open(daemonSocket(), daemonPort(), arguments.workers, logSink);
+        } catch (IOException e) {
+            System.out.println("[LOG] --- ERROR: could not start the daemon: " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+            metrics.close();
+            if (logSink != null) {
+                logSink.close();
+            }
+            System.out.printf("[LOG] --- Daemon stopped after %d requests (%d failed)%n", daemon.getRequests(), daemon.getFailures());
+        }));
+        System.out.println("[LOG] --- Daemon listening on " + daemon.address());
+        try {
+            daemon.serve();
+        } catch (IOException e) {
+            System.out.println("[LOG] --- ERROR: the daemon stopped accepting connections: " + e.getMessage());
+        }
+    }
+
+    // Sends the files named by the usual options (or a -b batch) to a running daemon, one at a time
+    public static void runClient() {
+        String operation = arguments.encode ? (arguments.adaptive ? CodingDaemon.ENCODE_ADAPTIVE : CodingDaemon.ENCODE)
+                : arguments.verify ? CodingDaemon.VERIFY : CodingDaemon.DECODE;
+        List<String> files = new ArrayList<>();
+        try {
+            if (arguments.batch == null) {
+                for (String file : arguments.encode ? new String[] { arguments.sourceFile }
+                        : new String[] { arguments.hFile, arguments.rlFile, arguments.adFile, arguments.hsFile }) {
+                    if (file != null) {
+                        files.add(file);
+                    }
+                }
+            } else if (arguments.batch.equals("-")) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        files.add(line.trim());
+                    }
+                }
+            } else {
+                BatchRunner runner = new BatchRunner(arguments.decode, arguments.adaptive, arguments.verify, 1, 1, null);
+                for (Path file : runner.listFiles(arguments.batch)) {
+                    files.add(file.toString());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[LOG] --- ERROR: could not list the batch input " + arguments.batch + ": " + e.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        int failed = 0;
+        try (DaemonClient client = DaemonClient.connect(daemonSocket(), daemonPort())) {
+            for (String file : files) {
+                String[] response = client.request(operation, file).split(" ", 4);
+                if (response[0].equals("OK") && response.length == 4) {
+                    System.out.printf("[LOG] --- OK: %s (%s -> %s bytes, %.3f ms)%n", file, response[1], response[2],
+                            Long.parseLong(response[3]) / 1000.0);
+                } else {
+                    failed++;
+                    System.out.println("[LOG] --- ERROR: " + file + ": " + String.join(" ", response).replaceFirst("^ERROR ", ""));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[LOG] --- ERROR: could not talk to the daemon at "
+                    + (daemonSocket() != null ? daemonSocket() : "localhost:" + daemonPort()) + ": " + e.getMessage());
+            return;
+        }
+        System.out.printf("[LOG] --- %d files (%d failed) in %.3f s%n", files.size(), failed, (System.nanoTime() - start) / 1e9);
+        System.out.println("[LOG] --- ===================================================");
+    }
+
+    // The socket, unless only a port was given; null means TCP
+    private static String daemonSocket() {
+        if (arguments.socket != null) {
+            return arguments.socket;
+        }
+        return arguments.port == null ? CodingDaemon.defaultSocket().toString() : null;
+    }
+
+    private static int daemonPort() {
+        return arguments.port == null ? CodingDaemon.DEFAULT_PORT : arguments.port;
+    }
+
     public static void encodeHuffmanAndRunlength(String sourceFile) {
         try {
-            int filenameFinalIndex = sourceFile.lastIndexOf('.');
-            BufferedReader reader = new BufferedReader(new FileReader(sourceFile));
-            HuffmanManager hManager = new HuffmanManager(reader);
-            reader.close();
-
-            hManager.generateHuffmanCode();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(sourceFile.substring(0, filenameFinalIndex) + "-HC.enc"));
-            hManager.encodeToFile(writer);
-            writer.close();
-
-            reader = new BufferedReader(new FileReader(sourceFile));
-            RLManager rlManager = new RLManager(reader);
-            reader.close();
-
-            writer = new BufferedWriter(new FileWriter(sourceFile.substring(0, filenameFinalIndex) + "-RL.enc"));
-            rlManager.encode(writer);
-            writer.close();
-
-            int originalFileSize = 0;
-            for(int i = 0; i < hManager.getFileContents().length(); i++) {
-                int currentChar = hManager.getFileContents().charAt(i);
-                originalFileSize += Integer.toBinaryString(currentChar).length();
-            }
-            System.out.printf("[LOG] --- Original file size: %d%n", originalFileSize);
-            System.out.printf("[LOG] --- Huffman encoded file size (with separators and table): %d bits%n", hManager.getEncodedFileSize());
-            System.out.printf("[LOG] --- Run-length encoded file size (with separators): %d bits%n", rlManager.getEncodedFileSize());
+            ForkJoinPool pool = new ForkJoinPool(arguments.workers);
+            EncodeResult result = encodeFile(sourceFile, pool, arguments.workers, listener);
+            pool.shutdown();
+            HuffmanManager hManager = result.huffman;
+            RLManager rlManager = result.runLength;
+
+            if (logSink != null) {
+                logSink.flush();
+            }
+            if (result.contextHuffman != null) {
+                printOrder1Summary(result.contextHuffman, rlManager);
+                return;
+            }
+            System.out.printf("[LOG] --- Original file size: %d bits%n", hManager.getOriginalFileSize());
+            System.out.printf("[LOG] --- Huffman encoded file size (with header and table): %d bits%n", hManager.getEncodedFileSize());
+            System.out.printf("[LOG] --- Run-length encoded file size (with header): %d bits%n", rlManager.getEncodedFileSize());
             System.out.printf("[LOG] --- H(X) = %.3f, entropy of the source file%n", hManager.getEntropy());
             System.out.printf("[LOG] --- H(Y - Huffman) = %.3f (the original entropy of source), average word length L = %.3f %n", hManager.getEntropy(), hManager.getAvgWordLength());
+            if (hManager.isSampled() && hManager.getExactAvgWordLength() >= 0) {
+                double exact = hManager.getExactAvgWordLength();
+                double penalty = exact == 0 ? 0 : Math.max(0, hManager.getAvgWordLength() / exact - 1);
+                System.out.printf("[LOG] --- Code from a %s sample of %.2f%% (%d bytes escaped): L = %.3f vs %.3f from exact counts (+%.3f%%, about %d bytes)%n",
+                        arguments.sampleMode, arguments.sample * 100, hManager.getEscapedSymbols(), hManager.getAvgWordLength(), exact,
+                        penalty * 100, (long)((hManager.getAvgWordLength() - exact) * hManager.getOriginalLength() / 8));
+            }
+            if (arguments.maxCodeLength != null && hManager.getUnlimitedAvgWordLength() >= 0) {
+                double unlimited = hManager.getUnlimitedAvgWordLength();
+                System.out.printf("[LOG] --- Code length limit %d bits (longest code: %d): L = %.3f vs %.3f unconstrained (+%.3f%%)%n",
+                        arguments.maxCodeLength, hManager.getMaxCodeLength(), hManager.getAvgWordLength(), unlimited,
+                        unlimited == 0 ? 0 : Math.max(0, hManager.getAvgWordLength() / unlimited - 1) * 100);
+            }
             System.out.printf("[LOG] --- H(Y - Run-length) = %.3f, average word length L = %.3f %n", rlManager.getEntropy(), rlManager.getAvgWordLength());
             System.out.println("[LOG] --- ===================================================");
+        } catch(IllegalArgumentException e) {
+            System.out.println("[LOG] --- ERROR: " + e.getMessage());
+        } catch(IOException e) {
+            System.out.println("[LOG] --- ERROR: something went wrong when reading/writing from/to a file! " + e.getMessage());
+        }
+    }
+
+    private static void printOrder1Summary(ContextHuffmanManager cManager, RLManager rlManager) {
+        System.out.printf("[LOG] --- Original file size: %d bits%n", cManager.getOriginalFileSize());
+        System.out.printf("[LOG] --- Order-1 Huffman encoded file size (with header and tables): %d bits%n", cManager.getEncodedFileSize());
+        System.out.printf("[LOG] --- Run-length encoded file size (with header): %d bits%n", rlManager.getEncodedFileSize());
+        System.out.printf("[LOG] --- H(X) = %.3f, entropy of the source file%n", cManager.getEntropy());
+        System.out.printf("[LOG] --- H(X | previous byte) = %.3f, conditional entropy of the source file%n", cManager.getConditionalEntropy());
+        System.out.printf("[LOG] --- H(Y - Huffman order-1) = %.3f, average word length L = %.3f (%d context tables, the rest on the fallback table)%n",
+                cManager.getConditionalEntropy(), cManager.getAvgWordLength(), cManager.getOwnTables());
+        System.out.printf("[LOG] --- H(Y - Run-length) = %.3f, average word length L = %.3f %n", rlManager.getEntropy(), rlManager.getAvgWordLength());
+        System.out.println("[LOG] --- ===================================================");
+    }
+
+    // The managers of one encoded source, for the summary; the Huffman one is order-0 or order-1
+    static class EncodeResult {
+        final HuffmanManager huffman;
+        final ContextHuffmanManager contextHuffman;
+        final RLManager runLength;
+
+        EncodeResult(HuffmanManager huffman, ContextHuffmanManager contextHuffman, RLManager runLength) {
+            this.huffman = huffman;
+            this.contextHuffman = contextHuffman;
+            this.runLength = runLength;
+        }
+
+        // In bits, header included
+        long getHuffmanEncodedFileSize() {
+            return huffman != null ? huffman.getEncodedFileSize() : contextHuffman.getEncodedFileSize();
+        }
+    }
+
+    /*
+     * Writes <name>-HC.enc and <name>-RL.enc next to the source. The pool only runs Huffman blocks
+     * and may be shared by several files (batch mode).
+     */
+    static EncodeResult encodeFile(String sourceFile, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        String baseName = baseName(sourceFile);
+        /*
+         * One mapping serves the frequency pass, the Huffman encode pass and the run-length scan.
+         * Pages are read as the passes touch them and the outputs are written as they are encoded,
+         * so there is no separate read or write phase: that I/O is part of histogram and encode.
+         */
+        try (MappedSource source = MappedSource.map(Path.of(sourceFile))) {
+            long length = source.length();
+
+            Metrics.Phase phase;
+            HuffmanManager hManager = null;
+            ContextHuffmanManager cManager = null;
+            if (arguments.order1 && arguments.sample != null) {
+                throw new IllegalArgumentException("--sample is only supported for the order-0 Huffman code");
+            }
+            if (arguments.order1) {
+                phase = metrics.start(sourceFile, ContextHuffmanManager.CODEC_NAME, "histogram");
+                cManager = new ContextHuffmanManager(source, pool, workers, listener);
+                if (arguments.maxCodeLength != null) {
+                    cManager.setMaxCodeLength(arguments.maxCodeLength);
+                }
+                phase.end(length, 0);
+                phase = metrics.start(sourceFile, ContextHuffmanManager.CODEC_NAME, "tree");
+                cManager.generateHuffmanCodes();
+                phase.end(0, 0);
+            } else {
+                phase = metrics.start(sourceFile, HuffmanManager.CODEC_NAME, "histogram");
+                hManager = arguments.sample == null ? new HuffmanManager(source, pool, workers, listener)
+                        : new HuffmanManager(source, pool, workers, listener, arguments.sample, arguments.sampleMode);
+                if (arguments.maxCodeLength != null) {
+                    hManager.setMaxCodeLength(arguments.maxCodeLength);
+                }
+                phase.end(length, 0);
+                phase = metrics.start(sourceFile, HuffmanManager.CODEC_NAME, "tree");
+                if (arguments.table != null) {
+                    hManager.useCachedTable(tableCache, arguments.table);
+                } else {
+                    hManager.generateHuffmanCode();
+                }
+                phase.end(0, 0);
+            }
+            phase = metrics.start(sourceFile, cManager != null ? ContextHuffmanManager.CODEC_NAME : HuffmanManager.CODEC_NAME, "encode");
+            writeOutput(baseName + "-HC.enc", cManager != null ? cManager::encodeToFile : hManager::encodeToFile);
+            phase.end(length, (cManager != null ? cManager.getEncodedFileSize() : hManager.getEncodedFileSize()) / 8);
+
+            RLManager rlManager = new RLManager(source, listener);
+            phase = metrics.start(sourceFile, RLManager.CODEC_NAME, "encode");
+            writeOutput(baseName + "-RL.enc", rlManager::encode);
+            phase.end(length, rlManager.getEncodedFileSize() / 8);
+
+            return new EncodeResult(hManager, cManager, rlManager);
+        }
+    }
+
+    interface OutputWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /*
+     * Creates the file and closes it even if encoding fails, so long-running batch and daemon
+     * processes do not leak descriptors; a failed encode leaves no partial output behind.
+     */
+    static void writeOutput(String filename, OutputWriter writer) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename))) {
+            writer.write(out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(Path.of(filename));
+            throw e;
+        }
+    }
+
+    public static void encodeAdaptive(String sourceFile) {
+        try {
+            ForkJoinPool pool = new ForkJoinPool(arguments.workers);
+            AdaptiveManager manager = encodeAdaptiveFile(sourceFile, pool, arguments.workers, listener);
+            pool.shutdown();
+
+            if (logSink != null) {
+                logSink.flush();
+            }
+            System.out.printf("[LOG] --- Original file size: %d bits%n", Files.size(Path.of(sourceFile)) * 8);
+            System.out.printf("[LOG] --- Adaptive encoded file size (with header and index): %d bits%n", manager.getEncodedFileSize());
+            for (int method = 0; method < AdaptiveManager.METHOD_NAMES.length; method++) {
+                System.out.printf("[LOG] --- %s: %d blocks, %d bytes%n", AdaptiveManager.METHOD_NAMES[method],
+                        manager.getMethodBlocks(method), manager.getMethodBytes(method));
+            }
+            System.out.println("[LOG] --- ===================================================");
         } catch(IOException e) {
             System.out.println("[LOG] --- ERROR: something went wrong when reading/writing from/to a file!");
         }
     }
 
+    // Writes <name>-AD.enc next to the source
+    static AdaptiveManager encodeAdaptiveFile(String sourceFile, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        try (MappedSource source = MappedSource.map(Path.of(sourceFile))) {
+            AdaptiveManager manager = new AdaptiveManager(source, pool, workers, listener);
+            Metrics.Phase phase = metrics.start(sourceFile, AdaptiveManager.CODEC_NAME, "encode");
+            writeOutput(baseName(sourceFile) + "-AD.enc", manager::encodeToFile);
+            phase.end(source.length(), manager.getEncodedFileSize() / 8);
+            return manager;
+        }
+    }
+
+    public static void decodeAdaptive(String adFilename) {
+        try {
+            ForkJoinPool pool = new ForkJoinPool(arguments.workers);
+            decodeAdaptiveFile(adFilename, pool, arguments.workers, listener);
+            pool.shutdown();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the number of decoded bytes
+    static long decodeAdaptiveFile(String adFilename, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(baseName(adFilename) + "-decoded.txt"))) {
+            Metrics.Phase phase = metrics.start(adFilename, AdaptiveManager.CODEC_NAME, "decode");
+            long decodedLength = AdaptiveManager.decodeFile(Path.of(adFilename), out, pool, workers, listener);
+            phase.end(Files.size(Path.of(adFilename)), decodedLength);
+            return decodedLength;
+        }
+    }
+
+    // Without a source file stdin is encoded to stdout, and the summary goes to stderr
+    public static void encodeStream(String sourceFile) {
+        PrintStream log = sourceFile == null ? System.err : System.out;
+        try (InputStream in = sourceFile == null ? System.in : new FileInputStream(sourceFile);
+             OutputStream out = new BufferedOutputStream(sourceFile == null ? System.out
+                     : new FileOutputStream(baseName(sourceFile) + "-HS.enc"), 1 << 16)) {
+            StreamingHuffman encoder = new StreamingHuffman(listener);
+            Metrics.Phase phase = metrics.start(sourceFile == null ? "-" : sourceFile, StreamingHuffman.CODEC_NAME, "encode");
+            encoder.encode(in, out);
+            phase.end(encoder.getInputLength(), encoder.getEncodedFileSize() / 8);
+
+            if (logSink != null) {
+                logSink.flush();
+            }
+            log.printf("[LOG] --- Original file size: %d bits%n", encoder.getInputLength() * 8);
+            log.printf("[LOG] --- Streaming Huffman encoded file size (with header): %d bits%n", encoder.getEncodedFileSize());
+            log.printf("[LOG] --- Average word length L = %.3f %n", encoder.getAvgWordLength());
+            log.println("[LOG] --- ===================================================");
+        } catch (IOException e) {
+            log.println("[LOG] --- ERROR: something went wrong when reading/writing from/to a file! " + e.getMessage());
+        }
+    }
+
+    public static void decodeStream(String hsFilename) {
+        try (InputStream in = hsFilename == null ? System.in : new FileInputStream(hsFilename);
+             OutputStream out = new BufferedOutputStream(hsFilename == null ? System.out
+                     : new FileOutputStream(baseName(hsFilename) + "-decoded.txt"), 1 << 16)) {
+            Metrics.Phase phase = metrics.start(hsFilename == null ? "-" : hsFilename, StreamingHuffman.CODEC_NAME, "decode");
+            long decodedLength = StreamingHuffman.decode(in, out, listener);
+            phase.end(hsFilename == null ? 0 : Files.size(Path.of(hsFilename)), decodedLength);
+        } catch (IOException e) {
+            System.err.println("[LOG] --- ERROR: could not decode the stream: " + e.getMessage());
+        }
+    }
+
+    // Streaming file to <name>-decoded.txt; returns the number of decoded bytes
+    static long decodeStreamFile(String hsFilename, CodingListener listener) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(hsFilename), 1 << 16);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(baseName(hsFilename) + "-decoded.txt"), 1 << 16)) {
+            Metrics.Phase phase = metrics.start(hsFilename, StreamingHuffman.CODEC_NAME, "decode");
+            long decodedLength = StreamingHuffman.decode(in, out, listener);
+            phase.end(Files.size(Path.of(hsFilename)), decodedLength);
+            return decodedLength;
+        }
+    }
+
+    // Decodes a file of any format, told by its magic; returns the number of decoded bytes
+    static long decodeAnyFile(String filename, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        int magic = readMagic(Path.of(filename));
+        if (magic == HuffmanManager.MAGIC || magic == ContextHuffmanManager.MAGIC) {
+            return decodeHuffmanFile(filename, pool, workers, listener);
+        }
+        if (magic == AdaptiveManager.MAGIC) {
+            return decodeAdaptiveFile(filename, pool, workers, listener);
+        }
+        if (magic == RLManager.MAGIC) {
+            return decodeRunlengthFile(filename, listener);
+        }
+        if (magic == StreamingHuffman.MAGIC) {
+            return decodeStreamFile(filename, listener);
+        }
+        throw new IOException("not a file encoded by this tool (unknown magic)");
+    }
+
+    public static void decodeRange(String encodedFilename, String range) {
+        int separator = range.indexOf(':');
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(range.substring(0, Math.max(separator, 0)));
+            length = Long.parseLong(range.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            System.out.println("[LOG] --- ERROR: the range must be given as <offset>:<length>, got " + range);
+            return;
+        }
+        try (SeekableReader reader = SeekableReader.open(Path.of(encodedFilename), tableCache);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(baseName(encodedFilename) + "-decoded.txt"))) {
+            Metrics.Phase phase = metrics.start(encodedFilename, "RANGE", "decode");
+            byte[] chunk = new byte[HuffmanManager.BLOCK_SIZE];
+            long written = 0;
+            while (written < length) {
+                int read = reader.read(offset + written, chunk, 0, (int)Math.min(chunk.length, length - written));
+                if (read <= 0) {
+                    break;
+                }
+                out.write(chunk, 0, read);
+                written += read;
+            }
+            phase.end(written, written);
+            System.out.printf("[LOG] --- Decoded %d bytes at offset %d (of %d) from %d blocks%n",
+                    written, offset, reader.length(), reader.getBlocksDecoded());
+        } catch (IOException | IndexOutOfBoundsException e) {
+            System.out.println("[LOG] --- ERROR: could not decode the range: " + e.getMessage());
+        }
+    }
+
+    public static void verify() {
+        for (String filename : new String[] { arguments.hFile, arguments.rlFile, arguments.adFile, arguments.hsFile }) {
+            if (filename == null) {
+                continue;
+            }
+            try {
+                long start = System.nanoTime();
+                long size = verifyFile(filename);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                // Streaming files have no block checksums: they can only be checked by decoding them
+                boolean decoded = readMagic(Path.of(filename)) == StreamingHuffman.MAGIC;
+                System.out.printf("[LOG] --- OK: %s (%d bytes, %.1f MB/s%s)%n", filename, size,
+                        seconds > 0 ? size / (1024.0 * 1024.0) / seconds : 0,
+                        decoded ? ", checked by a full decode" : "");
+            } catch (IOException e) {
+                System.out.println("[LOG] --- ERROR: " + filename + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Checks the checksums of an encoded file of any format without writing output; returns its
+     * size. Block containers and run-length files are checked without decoding, streaming files
+     * only carry a checksum of the original data and are decoded to nowhere.
+     */
+    static long verifyFile(String filename) throws IOException {
+        Path file = Path.of(filename);
+        Metrics.Phase phase = metrics.start(filename, "VERIFY", "verify");
+        long size = Files.size(file);
+        int magic = readMagic(file);
+        if (magic == StreamingHuffman.MAGIC) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(filename), 1 << 16)) {
+                StreamingHuffman.decode(in, OutputStream.nullOutputStream(), CodingListener.NONE);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (magic == RLManager.MAGIC) {
+                    RLManager.verify(channel);
+                } else if (magic == HuffmanManager.MAGIC) {
+                    BlockIndex.verify(channel, HuffmanManager.VERSION, "Huffman");
+                } else if (magic == ContextHuffmanManager.MAGIC) {
+                    BlockIndex.verify(channel, ContextHuffmanManager.VERSION, "order-1 Huffman");
+                } else if (magic == AdaptiveManager.MAGIC) {
+                    BlockIndex.verify(channel, AdaptiveManager.VERSION, "adaptive");
+                } else {
+                    throw new IOException("not a file encoded by this tool (unknown magic)");
+                }
+            }
+        }
+        phase.end(size, 0);
+        return size;
+    }
+
     public static void decodeHuffmanAndRunlength(String hFilename, String rlFilename) {
         decodeHuffman(hFilename);
         decodeRunlength(rlFilename);
@@ -104,30 +642,63 @@ public class Main {
 
     public static void decodeHuffman(String hFilename) {
         try {
-            int filenameFinalIndex = hFilename.lastIndexOf('.');
-            BufferedReader reader = new BufferedReader(new FileReader(hFilename));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(hFilename.substring(0, filenameFinalIndex) + "-decoded.txt"));
-            HuffmanManager.decodeFile(reader, writer);
-            reader.close();
-            writer.close();
+            ForkJoinPool pool = new ForkJoinPool(arguments.workers);
+            decodeHuffmanFile(hFilename, pool, arguments.workers, listener);
+            pool.shutdown();
         } catch(IOException e) {
             e.printStackTrace();
         }
     }
 
-    public static void decodeRunlength(String rlFilename) {
-        try{
-            int filenameFinalIndex = rlFilename.lastIndexOf('.');
-            BufferedReader reader = new BufferedReader(new FileReader(rlFilename));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(rlFilename.substring(0, filenameFinalIndex) + "-decoded.txt"));
+    // Returns the number of decoded bytes; order-0 and order-1 files are told apart by their magic
+    static long decodeHuffmanFile(String hFilename, ExecutorService pool, int workers, CodingListener listener) throws IOException {
+        boolean order1 = readMagic(Path.of(hFilename)) == ContextHuffmanManager.MAGIC;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(baseName(hFilename) + "-decoded.txt"))) {
+            Metrics.Phase phase = metrics.start(hFilename, order1 ? ContextHuffmanManager.CODEC_NAME : HuffmanManager.CODEC_NAME, "decode");
+            long decodedLength = order1
+                    ? ContextHuffmanManager.decodeFile(Path.of(hFilename), out, pool, workers, listener)
+                    : HuffmanManager.decodeFile(Path.of(hFilename), out, pool, workers, listener, tableCache);
+            // Writing the output is part of decoding: blocks are written as they are decoded
+            out.flush();
+            phase.end(Files.size(Path.of(hFilename)), decodedLength);
+            return decodedLength;
+        }
+    }
 
-            RLManager.decode(reader.readLine(), writer);
+    static int readMagic(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 2) {
+                throw new IOException("not a file encoded by this tool (" + channel.size() + " bytes)");
+            }
+            return BlockIndex.readFully(channel, 0, 2).getShort() & 0xFFFF;
+        }
+    }
 
-            reader.close();
-            writer.close();
+    public static void decodeRunlength(String rlFilename) {
+        try{
+            decodeRunlengthFile(rlFilename, listener);
         }catch (IOException e) {
             e.printStackTrace();
         }
 
     }
-}
\ No newline at end of file
+
+    // Returns the number of decoded bytes
+    static long decodeRunlengthFile(String rlFilename, CodingListener listener) throws IOException {
+        try (FileChannel in = FileChannel.open(Path.of(rlFilename), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Path.of(baseName(rlFilename) + "-decoded.txt"),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Metrics.Phase phase = metrics.start(rlFilename, RLManager.CODEC_NAME, "decode");
+            RLManager.decode(in, out, listener);
+            phase.end(in.size(), out.size());
+            return out.size();
+        }
+    }
+
+    // Path without the extension of the file name (a dot in a directory name does not count)
+    static String baseName(String filename) {
+        int dot = filename.lastIndexOf('.');
+        int separator = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf(File.separatorChar));
+        return dot > separator + 1 ? filename.substring(0, dot) : filename;
+    }
+}
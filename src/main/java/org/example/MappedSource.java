@@ -0,0 +1,77 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only view of the input as a list of byte buffers. Files are memory-mapped in windows
+ * (a single mapping is limited to 2 GB), so every pass over the data reads straight from the
+ * page cache without copying it onto the heap. Buffers must only be read with absolute gets.
+ */
+public class MappedSource implements Closeable {
+
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final List<ByteBuffer> segments;
+    private final long length;
+
+    private MappedSource(FileChannel channel, List<ByteBuffer> segments, long length) {
+        this.channel = channel;
+        this.segments = Collections.unmodifiableList(segments);
+        this.length = length;
+    }
+
+    public static MappedSource map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            List<ByteBuffer> segments = new ArrayList<>();
+            for (long position = 0; position < size; position += SEGMENT_SIZE) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position)));
+            }
+            return new MappedSource(channel, segments, size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Heap-backed source for data that is already in memory
+    public static MappedSource wrap(byte[] data) {
+        return new MappedSource(null, List.of(ByteBuffer.wrap(data)), data.length);
+    }
+
+    public List<ByteBuffer> segments() {
+        return segments;
+    }
+
+    /*
+     * Block `index` of the input for a block size that divides SEGMENT_SIZE (any power of two up to
+     * 1 GB), so a block never straddles two mappings. The last block may be shorter.
+     */
+    public ByteBuffer block(long index, int blockSize) {
+        long start = index * blockSize;
+        ByteBuffer segment = segments.get((int)(start / SEGMENT_SIZE));
+        int offset = (int)(start % SEGMENT_SIZE);
+        return segment.slice(offset, Math.min(blockSize, segment.limit() - offset));
+    }
+
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Per-phase instrumentation of encode/decode runs (histogram, tree, encode, decode, verify).
+ * Reading the input and writing the output happen inside the encode and decode passes and are
+ * counted there. Every phase becomes one record with wall time, input throughput, bytes in/out,
+ * the in/out ratio, bytes allocated and the number of GCs, appended to a file as JSON lines or
+ * CSV so batch jobs can ingest it. NONE records nothing.
+ *
+ * Allocations and GCs are process-wide: the worker pools are shared, so a phase cannot be told
+ * apart by thread. With several files in flight (batch or daemon mode) a record includes what
+ * the other files allocated at the same time.
+ */
+public class Metrics implements Closeable {
+
+    public enum Format { JSON, CSV }
+
+    public static final Metrics NONE = new Metrics(null, Format.JSON);
+
+    private static final String CSV_HEADER =
+            "run,file,codec,phase,wall_ms,bytes_in,bytes_out,mb_per_s,ratio,allocated_bytes,gc_count";
+
+    private final PrintWriter out;
+    private final Format format;
+    private final long runId = System.currentTimeMillis();
+
+    private Metrics(PrintWriter out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    // Appends to an existing file; a new CSV file starts with the header line
+    public static Metrics open(Path file, Format format) throws IOException {
+        boolean empty = !Files.exists(file) || Files.size(file) == 0;
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        PrintWriter out = new PrintWriter(writer);
+        if (format == Format.CSV && empty) {
+            out.println(CSV_HEADER);
+        }
+        return new Metrics(out, format);
+    }
+
+    public Phase start(String file, String codec, String phase) {
+        return new Phase(file, codec, phase);
+    }
+
+    public class Phase {
+
+        private final String file;
+        private final String codec;
+        private final String name;
+        private final long startNanos;
+        private final long startAllocated;
+        private final long startGcCount;
+
+        private Phase(String file, String codec, String name) {
+            this.file = file;
+            this.codec = codec;
+            this.name = name;
+            this.startAllocated = out == null ? 0 : allocatedBytes();
+            this.startGcCount = out == null ? 0 : gcCount();
+            this.startNanos = System.nanoTime();
+        }
+
+        public void end(long bytesIn, long bytesOut) {
+            long nanos = System.nanoTime() - startNanos;
+            if (out == null) {
+                return;
+            }
+            long allocated = Math.max(0, allocatedBytes() - startAllocated);
+            record(file, codec, name, nanos, bytesIn, bytesOut, allocated, gcCount() - startGcCount);
+        }
+    }
+
+    private synchronized void record(String file, String codec, String phase, long nanos, long bytesIn,
+                                     long bytesOut, long allocated, long gcCount) {
+        double wallMs = nanos / 1e6;
+        double mbPerSecond = nanos == 0 ? 0 : bytesIn / (1024.0 * 1024.0) / (nanos / 1e9);
+        double ratio = bytesOut == 0 ? 0 : (double)bytesIn / bytesOut;
+        if (format == Format.JSON) {
+            out.println(String.format(Locale.ROOT,
+                    "{\"run\":%d,\"file\":\"%s\",\"codec\":\"%s\",\"phase\":\"%s\",\"wall_ms\":%.3f,"
+                            + "\"bytes_in\":%d,\"bytes_out\":%d,\"mb_per_s\":%.3f,\"ratio\":%.4f,"
+                            + "\"allocated_bytes\":%d,\"gc_count\":%d}",
+                    runId, escapeJson(file), codec, phase, wallMs, bytesIn, bytesOut, mbPerSecond, ratio,
+                    allocated, gcCount));
+        } else {
+            out.println(String.format(Locale.ROOT, "%d,%s,%s,%s,%.3f,%d,%d,%.3f,%.4f,%d,%d",
+                    runId, escapeCsv(file), codec, phase, wallMs, bytesIn, bytesOut, mbPerSecond, ratio,
+                    allocated, gcCount));
+        }
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int)c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String escapeCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    // Sum over all live threads, the worker pools included; -1 if the JVM cannot tell
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean)threads;
+        if (!allocation.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : allocation.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
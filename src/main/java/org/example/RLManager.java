@@ -1,158 +1,519 @@
 package org.example;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
+/**
+ * Binary run-length coding. After a small header (magic, version, original length) the file is a
+ * sequence of tokens, each starting with a LEB128 varint h:
+ *   h even - run of (h >>> 1) + MIN_RUN copies of the byte that follows,
+ *   h odd  - literal of (h >>> 1) + 1 raw bytes that follow (PackBits-style escape, so data
+ *            without repetitions grows by about one byte per MAX_LITERAL bytes).
+ * A trailer closes the file: the CRC32C of the original data, then the CRC32C of every byte before
+ * it, so the file can be checked without decoding it.
+ */
 public class RLManager {
 
-    private String fileContent;
-    private int encodedFileSize;
+    static final String CODEC_NAME = "RUN-LENGTH";
+    static final int MAGIC = 0x524C; // "RL"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 11;
+    static final int TRAILER_BYTES = 8;
+    static final int MIN_RUN = 3;
+    static final int MAX_LITERAL = 4096;
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private final MappedSource source;
+    private final CodingListener listener;
+    private long encodedFileSize;
     private double entropy = 0;
     private double avgWordLength = 0;
-    private int totalBinaryWords = 0;
-    private Map<String, Integer> frequencies = new HashMap<>();
-
-    public RLManager(BufferedReader reader) throws IOException {
+    private long totalWords = 0;
+    // Word = one run (length, byte) or one literal byte; null for encodeBlock, which keeps no statistics
+    private RunCounts runFrequencies;
+    private final long[] literalFrequencies = new long[256];
 
-        StringBuilder fileContentBuilder = new StringBuilder("");
-        String tmp = reader.readLine();
+    // Run that is still open while the input is being scanned
+    private int lastChar = -1;
+    private long counter = 0;
+    // Literal bytes waiting for the next run (or for the buffer to fill up)
+    private final byte[] literal = new byte[MAX_LITERAL];
+    private int literalLength = 0;
 
-        while (tmp != null) {
-            fileContentBuilder.append(tmp);
-            tmp = reader.readLine();
-        }
+    private OutputStream out;
+    private long bytesWritten;
 
-        this.fileContent = fileContentBuilder.toString();
+    public RLManager(MappedSource source, CodingListener listener) {
+        this.source = source;
+        this.listener = listener;
     }
 
     private void calculateEntropy() {
-        for (String binaryCharacter : frequencies.keySet()) {
-            double binaryCharProbability = (double)frequencies.get(binaryCharacter) / totalBinaryWords;
-            this.entropy += (binaryCharProbability * Math.log10(1 / binaryCharProbability) / Math.log10(2));
+        this.entropy = 0;
+        for (long count : runFrequencies.counts) {
+            addEntropy(count);
+        }
+        for (long count : literalFrequencies) {
+            addEntropy(count);
+        }
+    }
+
+    private void addEntropy(long count) {
+        if (count > 0) {
+            double wordProbability = (double)count / totalWords;
+            this.entropy += (wordProbability * Math.log10(1 / wordProbability) / Math.log10(2));
         }
     }
 
-    public void encode(BufferedWriter writer) throws IOException {
-        StringBuilder encodedMessage = new StringBuilder("");
-        int counter = 1;
-        char lastChar = fileContent.charAt(0);
-        int totalBitsInFile = 0;
+    public void encode(OutputStream out) throws IOException {
+        reset();
+        CRC32C fileChecksum = new CRC32C();
+        this.out = new CheckedOutputStream(out, fileChecksum);
+        listener.onEncodeStart(CODEC_NAME, source.length(), null);
+
+        writeShort(MAGIC);
+        this.out.write(VERSION);
+        bytesWritten++;
+        writeLong(source.length());
+
+        CRC32C contentChecksum = new CRC32C();
+        for (ByteBuffer segment : source.segments()) {
+            encodeBytes(segment);
+            contentChecksum.update(segment.duplicate());
+        }
+        if (counter > 0) {
+            closeRun();
+        }
+        flushLiteral();
+        writeInt((int)contentChecksum.getValue());
+        this.out = out;
+        writeInt((int)fileChecksum.getValue());
+        out.flush();
+
+        listener.onFinish(CODEC_NAME);
+
+        this.encodedFileSize = bytesWritten * 8;
+        for (long count : runFrequencies.counts) {
+            this.totalWords += count;
+        }
+        for (long count : literalFrequencies) {
+            this.totalWords += count;
+        }
+        calculateEntropy();
+        calculateAvgWordLength();
+    }
 
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- GENERATING RUN-LENGTH CODE (AND WRITING TO FILE)");
-            System.out.println("[LOG] --- ");
-            System.out.print("[LOG] --- ");
+    // Run state and statistics start over, so one manager can encode its source again
+    private void reset() {
+        lastChar = -1;
+        counter = 0;
+        literalLength = 0;
+        bytesWritten = 0;
+        totalWords = 0;
+        avgWordLength = 0;
+        if (runFrequencies == null) {
+            runFrequencies = new RunCounts();
         }
-        for (int i = 1; i < fileContent.length(); i++) {
-            if (lastChar == fileContent.charAt(i)) {
+        runFrequencies.clear();
+        Arrays.fill(literalFrequencies, 0);
+    }
+
+    // Runs may continue across segment boundaries, so only closed runs are written here
+    private void encodeBytes(ByteBuffer segment) throws IOException {
+        for (int i = 0, limit = segment.limit(); i < limit; i++) {
+            int currentChar = segment.get(i) & 0xFF;
+            if (currentChar == lastChar) {
                 counter++;
             } else {
-                if (Main.arguments.debug) {
-                    System.out.printf("%d%c ", counter, lastChar);
+                if (counter > 0) {
+                    closeRun();
                 }
-                String binaryReps = Integer.toBinaryString(counter);
-                String character = Integer.toBinaryString(lastChar);
-                encodedMessage.append(binaryReps);
-                encodedMessage.append("_");
-                encodedMessage.append(character);
-                encodedMessage.append("_");
-                this.frequencies.put(binaryReps + character, this.frequencies.containsKey(binaryReps + character) ? this.frequencies.get(binaryReps + character) : 1);
+                lastChar = currentChar;
                 counter = 1;
-                lastChar = fileContent.charAt(i);
-                totalBitsInFile += binaryReps.length();
-                totalBitsInFile += character.length();
-                totalBitsInFile += (2 * Integer.toBinaryString('_').length());
             }
-            if (i == fileContent.length() - 1) {
-                String binaryReps = Integer.toBinaryString(counter);
-                String binaryChar = Integer.toBinaryString(lastChar);
-                encodedMessage.append(binaryReps);
-                encodedMessage.append("_");
-                encodedMessage.append(binaryChar);
-                this.frequencies.put(binaryReps + binaryChar, this.frequencies.containsKey(binaryReps + binaryChar) ? this.frequencies.get(binaryReps + binaryChar) : 1);
-                totalBitsInFile += Integer.toBinaryString(counter).length();
-                totalBitsInFile += Integer.toBinaryString(lastChar).length();
-                totalBitsInFile += (Integer.toBinaryString('_').length());
+        }
+    }
+
+    // Short runs are cheaper as part of a literal than as a token of their own
+    private void closeRun() throws IOException {
+        if (counter >= MIN_RUN) {
+            flushLiteral();
+            writeVarint((counter - MIN_RUN) << 1);
+            out.write(lastChar);
+            bytesWritten++;
+            if (runFrequencies != null) {
+                runFrequencies.add(counter << 8 | lastChar);
+            }
+            listener.onRun(counter, lastChar);
+        } else {
+            for (int i = 0; i < counter; i++) {
+                if (literalLength == MAX_LITERAL) {
+                    flushLiteral();
+                }
+                literal[literalLength++] = (byte)lastChar;
             }
         }
-        this.encodedFileSize = totalBitsInFile;
+    }
 
-        if (Main.arguments.debug) {
-            System.out.println();
-            System.out.println("[LOG] --- ===================================================");
+    private void flushLiteral() throws IOException {
+        if (literalLength == 0) {
+            return;
         }
+        writeVarint(((long)(literalLength - 1) << 1) | 1);
+        out.write(literal, 0, literalLength);
+        bytesWritten += literalLength;
+        if (runFrequencies != null) {
+            for (int i = 0; i < literalLength; i++) {
+                literalFrequencies[literal[i] & 0xFF]++;
+            }
+        }
+        listener.onLiteral(literalLength);
+        literalLength = 0;
+    }
 
-        writer.write(encodedMessage.toString());
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)(value & 0x7F) | 0x80);
+            bytesWritten++;
+            value >>>= 7;
+        }
+        out.write((int)value);
+        bytesWritten++;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value >>> 8);
+        out.write(value);
+        bytesWritten += 2;
+    }
 
-        for (String binaryCharacter : frequencies.keySet()) {
-            this.totalBinaryWords += frequencies.get(binaryCharacter);
+    private void writeInt(int value) throws IOException {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(value >>> shift);
         }
-        calculateEntropy();
-        calculateAvgWordLength();
+        bytesWritten += 4;
+    }
+
+    private void writeLong(long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int)(value >>> shift));
+        }
+        bytesWritten += 8;
+    }
+
+    /*
+     * Count per run word, keyed length << 8 | byte, in an open-addressing table of primitives: one
+     * add per run, with no boxing and no allocation until the table grows. Keys are never 0, as
+     * runs are at least MIN_RUN long, so 0 marks a free slot; counts of free slots are 0.
+     */
+    private static class RunCounts {
+
+        private long[] keys = new long[256];
+        private long[] counts = new long[256];
+        private int size;
+
+        void add(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == key) {
+                counts[slot]++;
+                return;
+            }
+            keys[slot] = key;
+            counts[slot] = 1;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            return (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldCounts.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i], mask);
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0);
+            Arrays.fill(counts, 0);
+            size = 0;
+        }
+    }
+
+    // Token stream of one block without the file header, for containers that carry their own framing
+    static byte[] encodeBlock(ByteBuffer block) throws IOException {
+        RLManager encoder = new RLManager(null, CodingListener.NONE);
+        ByteArrayOutputStream tokens = new ByteArrayOutputStream(block.limit() + block.limit() / MAX_LITERAL + 16);
+        encoder.out = tokens;
+        encoder.encodeBytes(block);
+        if (encoder.counter > 0) {
+            encoder.closeRun();
+        }
+        encoder.flushLiteral();
+        return tokens.toByteArray();
     }
 
+    // Average number of encoded bits (token headers included) per word
     private void calculateAvgWordLength() {
-        for (String binaryChar : frequencies.keySet()) {
-            double binaryCharProbability = (double)frequencies.get(binaryChar) / totalBinaryWords;
-            this.avgWordLength += (binaryCharProbability * binaryChar.length());
+        if (totalWords > 0) {
+            this.avgWordLength = (double)(bytesWritten - HEADER_BYTES - TRAILER_BYTES) * 8 / totalWords;
         }
     }
 
+    /*
+     * Incremental decoder: the encoded file is read in CHUNK_SIZE pieces and the output is
+     * assembled in one reusable buffer, runs being copied in with Arrays.fill. Memory use is
+     * constant and a long run costs one fill per buffer length, not one write per byte.
+     */
+    public static void decode(ReadableByteChannel in, WritableByteChannel out, CodingListener listener) throws IOException {
+        TokenReader reader = new TokenReader(in);
+        if (((reader.readByte() << 8) | reader.readByte()) != MAGIC) {
+            throw new IOException("not a run-length encoded file (bad magic)");
+        }
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported run-length file version: " + version);
+        }
+        long originalLength = 0;
+        for (int i = 0; i < 8; i++) {
+            originalLength = (originalLength << 8) | reader.readByte();
+        }
+        listener.onDecodeStart(CODEC_NAME, originalLength, null);
+        CRC32C contentChecksum = new CRC32C();
+        decodeTokens(reader, originalLength, out, contentChecksum, listener);
+        checkTrailer(reader, contentChecksum);
+        listener.onFinish(CODEC_NAME);
+    }
 
-    public static void decode(String message, BufferedWriter writer) throws IOException {
-        StringBuilder decodedFileContent = new StringBuilder("");
-        StringBuilder accumulator = new StringBuilder("");
+    // Checks the trailer against the checksums of the decoded data and of the bytes read
+    private static void checkTrailer(TokenReader reader, Checksum contentChecksum) throws IOException {
+        if (reader.readInt() != (int)contentChecksum.getValue()) {
+            throw new IOException("corrupted run-length file: checksum mismatch of the decoded data");
+        }
+        int fileChecksum = reader.checksum();
+        if (reader.readInt() != fileChecksum) {
+            throw new IOException("corrupted run-length file: file checksum mismatch");
+        }
+        if (!reader.atEnd()) {
+            throw new IOException("corrupted run-length file: data after the trailer");
+        }
+    }
 
-        int repsNumber = -1;
-        if (Main.arguments.debug) {
-            System.out.println("[LOG] --- DECODING RUN-LENGTH FILE");
-            System.out.println("[LOG] --- ");
+    // Compares the file checksum with the trailer without decoding; returns the encoded size
+    static long verify(FileChannel in) throws IOException {
+        long size = in.size();
+        if (size < HEADER_BYTES + TRAILER_BYTES) {
+            throw new IOException("corrupted run-length file: truncated to " + size + " bytes");
+        }
+        ByteBuffer header = BlockIndex.readFully(in, 0, 3);
+        if ((header.getShort(0) & 0xFFFF) != MAGIC) {
+            throw new IOException("not a run-length encoded file (bad magic)");
+        }
+        if ((header.get(2) & 0xFF) != VERSION) {
+            throw new IOException("unsupported run-length file version: " + (header.get(2) & 0xFF));
+        }
+        CRC32C fileChecksum = new CRC32C();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        for (long position = 0; position < size - 4; ) {
+            chunk.clear().limit((int)Math.min(CHUNK_SIZE, size - 4 - position));
+            int read = in.read(chunk, position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of run-length file");
+            }
+            fileChecksum.update(chunk.flip());
+            position += read;
+        }
+        if (BlockIndex.readFully(in, size - 4, 4).getInt() != (int)fileChecksum.getValue()) {
+            throw new IOException("corrupted run-length file: file checksum mismatch");
         }
-        for (int i = 0; i < message.length(); i++) {
-            char stringCurrentChar = message.charAt(i);
-            if (stringCurrentChar != '_') {
-                accumulator.append(stringCurrentChar);
-                if (i != message.length() - 1) {
-                    continue;
+        return size;
+    }
+
+    // Inverse of encodeBlock
+    static byte[] decodeBlock(byte[] tokens, int offset, int length, int decodedLength) throws IOException {
+        TokenReader reader = new TokenReader(Channels.newChannel(new ByteArrayInputStream(tokens, offset, length)));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(decodedLength);
+        decodeTokens(reader, decodedLength, Channels.newChannel(decoded), null, CodingListener.NONE);
+        return decoded.toByteArray();
+    }
+
+    // The checksum, if given, is updated with the decoded data
+    private static void decodeTokens(TokenReader reader, long originalLength, WritableByteChannel out,
+                                     Checksum checksum, CodingListener listener) throws IOException {
+        ByteBuffer decoded = ByteBuffer.allocate(CHUNK_SIZE);
+        long decodedLength = 0;
+        while (decodedLength < originalLength) {
+            long header = reader.readVarint();
+            if ((header & 1) == 0) {
+                long reps = (header >>> 1) + MIN_RUN;
+                checkLength(reps, originalLength - decodedLength);
+                byte character = (byte)reader.readByte();
+                for (long left = reps; left > 0; ) {
+                    if (!decoded.hasRemaining()) {
+                        writeFully(out, decoded, checksum);
+                    }
+                    int step = (int)Math.min(left, decoded.remaining());
+                    Arrays.fill(decoded.array(), decoded.position(), decoded.position() + step, character);
+                    decoded.position(decoded.position() + step);
+                    left -= step;
                 }
+                decodedLength += reps;
+                listener.onRun(reps, character & 0xFF);
             } else {
-                if (repsNumber == -1) {
-                    repsNumber = Integer.parseInt(accumulator.toString(), 2);
-                    if (Main.arguments.debug) {
-                        System.out.printf("[LOG] --- Parsed: # of reps = %d (%s), ", repsNumber, accumulator);
+                long count = (header >>> 1) + 1;
+                checkLength(count, originalLength - decodedLength);
+                for (long left = count; left > 0; ) {
+                    if (!decoded.hasRemaining()) {
+                        writeFully(out, decoded, checksum);
                     }
-                    accumulator = new StringBuilder("");
-                    continue;
+                    int step = (int)Math.min(left, decoded.remaining());
+                    reader.readBytes(decoded.array(), decoded.position(), step);
+                    decoded.position(decoded.position() + step);
+                    left -= step;
                 }
+                decodedLength += count;
+                listener.onLiteral(count);
             }
+        }
+        writeFully(out, decoded, checksum);
+    }
+
+    // Checked before anything is written, so a corrupted length cannot produce more than the original size
+    private static void checkLength(long length, long remaining) throws IOException {
+        if (length < 0 || length > remaining) {
+            throw new IOException("corrupted run-length file: token of " + length + " bytes where " + remaining + " remain");
+        }
+    }
 
-            // Info about char has been collected
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer, Checksum checksum) throws IOException {
+        buffer.flip();
+        if (checksum != null) {
+            checksum.update(buffer.array(), 0, buffer.limit());
+        }
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
 
-            for (int j = 0; j < repsNumber; j++) {
-                int characterForm = Integer.parseInt(accumulator.toString(), 2);
-                decodedFileContent.append((char)characterForm);
+    // Buffered byte-level access to the encoded channel, keeping the CRC32C of the bytes consumed
+    private static class TokenReader {
+
+        private final ReadableByteChannel in;
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).flip();
+        private final CRC32C consumed = new CRC32C();
+        // Start of the bytes of the chunk not yet added to `consumed`
+        private int checksumMark;
+
+        TokenReader(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        private void ensureAvailable() throws IOException {
+            if (!chunk.hasRemaining()) {
+                checksum();
+                checksumMark = 0;
+                chunk.clear();
+                int read;
+                do {
+                    read = in.read(chunk);
+                } while (read == 0);
+                chunk.flip();
+                if (read < 0) {
+                    throw new EOFException("unexpected end of run-length file");
+                }
             }
+        }
 
-            if (Main.arguments.debug) {
-                int currentChar = Integer.parseInt(accumulator.toString(), 2);
-                System.out.printf("char: %s (%d) -> ", accumulator, currentChar);
-                for(int j = 0; j < repsNumber; j++) {
-                    System.out.print((char)currentChar);
+        int readByte() throws IOException {
+            ensureAvailable();
+            return chunk.get() & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        // CRC32C of everything read so far
+        int checksum() {
+            consumed.update(chunk.array(), checksumMark, chunk.position() - checksumMark);
+            checksumMark = chunk.position();
+            return (int)consumed.getValue();
+        }
+
+        boolean atEnd() throws IOException {
+            if (chunk.hasRemaining()) {
+                return false;
+            }
+            checksum();
+            checksumMark = 0;
+            chunk.clear();
+            int read;
+            do {
+                read = in.read(chunk);
+            } while (read == 0);
+            chunk.flip();
+            return read < 0;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
                 }
-                System.out.println();
             }
+            throw new IOException("corrupted run-length file: varint too long");
+        }
 
-            repsNumber = -1;
-            accumulator = new StringBuilder("");
+        void readBytes(byte[] destination, int offset, int length) throws IOException {
+            while (length > 0) {
+                ensureAvailable();
+                int step = Math.min(length, chunk.remaining());
+                chunk.get(destination, offset, step);
+                offset += step;
+                length -= step;
+            }
         }
-        System.out.println("[LOG] --- ===================================================");
-        writer.write(decodedFileContent.toString());
     }
 
-    public int getEncodedFileSize() {
+    public long getEncodedFileSize() {
         return encodedFileSize;
     }
 
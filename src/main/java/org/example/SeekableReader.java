@@ -0,0 +1,144 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Random access to a Huffman (-HC.enc, order-0 or order-1) or adaptive (-AD.enc) file:
+ * read(offset, length) looks the covering blocks up in the block index and decodes only those.
+ * Decoded blocks are kept in a small LRU cache, so nearby and repeated reads are served without
+ * decoding again. Reads may run concurrently; the file is only accessed with positional reads.
+ */
+public class SeekableReader implements Closeable {
+
+    static final int DEFAULT_CACHED_BLOCKS = 8;
+
+    private interface BlockDecoder {
+        byte[] decode(byte[] encoded, int decodedLength) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final BlockIndex index;
+    private final BlockDecoder decoder;
+    private final Map<Integer, byte[]> cache;
+    private long blocksDecoded;
+    private long cacheHits;
+
+    private SeekableReader(FileChannel channel, BlockIndex index, BlockDecoder decoder, int cachedBlocks) {
+        this.channel = channel;
+        this.index = index;
+        this.decoder = decoder;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cachedBlocks;
+            }
+        };
+    }
+
+    public static SeekableReader open(Path file, TableCache tableCache) throws IOException {
+        return open(file, tableCache, DEFAULT_CACHED_BLOCKS);
+    }
+
+    public static SeekableReader open(Path file, TableCache tableCache, int cachedBlocks) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            int magic = BlockIndex.readFully(channel, 0, 2).getShort() & 0xFFFF;
+            if (magic == HuffmanManager.MAGIC) {
+                HuffmanManager.Header header = HuffmanManager.readHeader(channel, tableCache);
+                return new SeekableReader(channel, header.index,
+                        (encoded, decodedLength) -> HuffmanManager.decodeBlock(header.code, encoded, decodedLength),
+                        Math.max(1, cachedBlocks));
+            }
+            if (magic == ContextHuffmanManager.MAGIC) {
+                ContextHuffmanManager.Header header = ContextHuffmanManager.readHeader(channel);
+                return new SeekableReader(channel, header.index,
+                        (encoded, decodedLength) -> ContextHuffmanManager.decodeBlock(header.codes, encoded, decodedLength),
+                        Math.max(1, cachedBlocks));
+            }
+            if (magic == AdaptiveManager.MAGIC) {
+                return new SeekableReader(channel, AdaptiveManager.readIndex(channel), AdaptiveManager::decodeBlock,
+                        Math.max(1, cachedBlocks));
+            }
+            throw new IOException("random access needs a Huffman or adaptive encoded file");
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Length of the original (decoded) data
+    public long length() {
+        return index.originalLength();
+    }
+
+    /*
+     * Copies up to `length` bytes starting at `offset` of the original data into destination and
+     * returns how many were copied: fewer only at the end of the data, -1 if offset is past it.
+     */
+    public int read(long offset, byte[] destination, int destinationOffset, int length) throws IOException {
+        if (offset < 0 || length < 0 || destinationOffset < 0 || destinationOffset + length > destination.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+        }
+        if (offset >= length()) {
+            return length == 0 ? 0 : -1;
+        }
+        int total = (int)Math.min(length, length() - offset);
+        int copied = 0;
+        while (copied < total) {
+            long position = offset + copied;
+            int block = (int)(position / index.blockSize());
+            int inBlock = (int)(position - index.uncompressedOffset(block));
+            byte[] decoded = block(block);
+            int step = Math.min(total - copied, decoded.length - inBlock);
+            System.arraycopy(decoded, inBlock, destination, destinationOffset + copied, step);
+            copied += step;
+        }
+        return copied;
+    }
+
+    public byte[] read(long offset, int length) throws IOException {
+        byte[] data = new byte[(int)Math.max(0, Math.min(length, length() - offset))];
+        read(offset, data, 0, data.length);
+        return data;
+    }
+
+    // Decoding runs outside the lock; two readers missing the same block may both decode it
+    private byte[] block(int block) throws IOException {
+        synchronized (cache) {
+            byte[] decoded = cache.get(block);
+            if (decoded != null) {
+                cacheHits++;
+                return decoded;
+            }
+        }
+        byte[] decoded = decoder.decode(index.readBlock(channel, block), index.decodedLength(block));
+        synchronized (cache) {
+            blocksDecoded++;
+            cache.put(block, decoded);
+        }
+        return decoded;
+    }
+
+    public long getBlocksDecoded() {
+        synchronized (cache) {
+            return blocksDecoded;
+        }
+    }
+
+    public long getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
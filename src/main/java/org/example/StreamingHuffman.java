@@ -0,0 +1,167 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * One-pass adaptive Huffman coding for input of unknown length (stdin, pipes). Encoder and decoder
+ * start from the same flat model and rebuild the code from the counts seen so far at fixed symbol
+ * positions, so no table is transmitted and nothing is read twice. The rebuild interval starts
+ * short, to adapt quickly, and doubles up to MAX_REBUILD_INTERVAL; counts are halved when their sum
+ * reaches MAX_TOTAL, so the model follows drift and memory stays constant. An end-of-stream symbol
+ * (256) terminates the data, since the length is not known in advance.
+ *
+ * Layout: magic, version, then the bitstream, the CRC32C of the original data after the end
+ * symbol, padded to a whole byte. There are no block checksums, so verifying a file costs a full
+ * decode, at decoding speed.
+ */
+public class StreamingHuffman {
+
+    static final String CODEC_NAME = "STREAMING HUFFMAN";
+    static final int MAGIC = 0x4853; // "HS"
+    static final int VERSION = 2;
+    static final int END_OF_STREAM = HuffmanManager.ALPHABET_SIZE;
+    static final int ALPHABET_SIZE = HuffmanManager.ALPHABET_SIZE + 1;
+    static final int FIRST_REBUILD_INTERVAL = 256;
+    static final int MAX_REBUILD_INTERVAL = 1 << 15;
+    static final long MAX_TOTAL = 1 << 20;
+    // Bounds the codes even after a long skewed stretch of input
+    static final int MAX_CODE_LENGTH = 15;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final CodingListener listener;
+    private long inputLength;
+    private long encodedFileSize;
+
+    public StreamingHuffman(CodingListener listener) {
+        this.listener = listener;
+    }
+
+    public void encode(InputStream in, OutputStream out) throws IOException {
+        Model model = new Model();
+        BitWriter writer = new BitWriter(out);
+        writer.writeBits(MAGIC, 16);
+        writer.writeBits(VERSION, 8);
+        listener.onEncodeStart(CODEC_NAME, -1, null);
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        CRC32C content = new CRC32C();
+        long[] codeWords = model.codeWords;
+        int[] codeLengths = model.codeLengths;
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                int symbol = chunk[i] & 0xFF;
+                writer.writeBits(codeWords[symbol], codeLengths[symbol]);
+                model.update(symbol);
+            }
+            content.update(chunk, 0, read);
+            inputLength += read;
+        }
+        writer.writeBits(codeWords[END_OF_STREAM], codeLengths[END_OF_STREAM]);
+        writer.writeBits(content.getValue(), 32);
+        writer.flush();
+        this.encodedFileSize = (writer.getTotalBits() + 7) / 8 * 8;
+        listener.onFinish(CODEC_NAME);
+    }
+
+    // Returns the number of decoded bytes
+    public static long decode(InputStream in, OutputStream out, CodingListener listener) throws IOException {
+        BitReader reader = new BitReader(in);
+        if (reader.readBits(16) != MAGIC) {
+            throw new IOException("not a streaming Huffman file (bad magic)");
+        }
+        int version = (int)reader.readBits(8);
+        if (version != VERSION) {
+            throw new IOException("unsupported streaming Huffman version: " + version);
+        }
+        listener.onDecodeStart(CODEC_NAME, -1, null);
+
+        Model model = new Model();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        CRC32C content = new CRC32C();
+        int filled = 0;
+        long decodedLength = 0;
+        while (true) {
+            int symbol = model.code.decodeSymbol(reader);
+            if (symbol == END_OF_STREAM) {
+                break;
+            }
+            chunk[filled++] = (byte)symbol;
+            if (filled == chunk.length) {
+                content.update(chunk, 0, filled);
+                out.write(chunk, 0, filled);
+                filled = 0;
+            }
+            decodedLength++;
+            model.update(symbol);
+        }
+        content.update(chunk, 0, filled);
+        out.write(chunk, 0, filled);
+        out.flush();
+        if (reader.readBits(32) != content.getValue()) {
+            throw new IOException("corrupted streaming Huffman file: checksum mismatch of the decoded data");
+        }
+        listener.onFinish(CODEC_NAME);
+        return decodedLength;
+    }
+
+    // Symbol counts and the code derived from them, evolved identically by encoder and decoder
+    private static class Model {
+
+        private final long[] counts = new long[ALPHABET_SIZE];
+        private long total;
+        private int rebuildInterval = FIRST_REBUILD_INTERVAL;
+        private int untilRebuild = FIRST_REBUILD_INTERVAL;
+        private HuffmanCode code;
+        private final long[] codeWords = new long[ALPHABET_SIZE];
+        private final int[] codeLengths = new int[ALPHABET_SIZE];
+
+        Model() {
+            Arrays.fill(counts, 1);
+            total = ALPHABET_SIZE;
+            rebuild();
+        }
+
+        private void rebuild() {
+            int[] lengths = HuffmanManager.codeLengths(counts, CodingListener.NONE);
+            code = new HuffmanCode(HuffmanManager.limitLengths(lengths, counts, MAX_CODE_LENGTH));
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                codeWords[symbol] = code.getCode(symbol);
+                codeLengths[symbol] = code.getLength(symbol);
+            }
+        }
+
+        void update(int symbol) {
+            counts[symbol]++;
+            if (++total >= MAX_TOTAL) {
+                total = 0;
+                for (int s = 0; s < ALPHABET_SIZE; s++) {
+                    counts[s] = (counts[s] + 1) >>> 1;
+                    total += counts[s];
+                }
+            }
+            if (--untilRebuild == 0) {
+                rebuild();
+                rebuildInterval = Math.min(rebuildInterval * 2, MAX_REBUILD_INTERVAL);
+                untilRebuild = rebuildInterval;
+            }
+        }
+    }
+
+    public long getInputLength() {
+        return inputLength;
+    }
+
+    // In bits, header included
+    public long getEncodedFileSize() {
+        return encodedFileSize;
+    }
+
+    public double getAvgWordLength() {
+        return inputLength == 0 ? 0 : (double)(encodedFileSize - 24 - 32) / inputLength;
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Trained code tables on local disk, one `<id>.tbl` file each, so files with the same symbol
+ * distribution (logs of one service, say) share a table instead of each building a tree and
+ * carrying its own. The modification time of a file is its last use; when more than `capacity`
+ * tables are stored the least recently used ones are deleted. Loaded tables are also kept in
+ * memory, so a batch run reads every table once.
+ */
+public class TableCache {
+
+    static final int MAGIC = 0x5442; // "TB"
+    static final String EXTENSION = ".tbl";
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    private final Path directory;
+    private final int capacity;
+    private final Map<String, HuffmanCode> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    public TableCache(Path directory, int capacity) {
+        this.directory = directory;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".codingmanager", "tables");
+    }
+
+    static void checkId(String id) throws IOException {
+        if (id == null || !VALID_ID.matcher(id).matches()) {
+            throw new IOException("invalid table id \"" + id + "\" (use up to 64 letters, digits, '.', '_' or '-')");
+        }
+    }
+
+    // The table stored under id, or null if there is none
+    public synchronized HuffmanCode get(String id) throws IOException {
+        checkId(id);
+        HuffmanCode code = loaded.get(id);
+        Path file = directory.resolve(id + EXTENSION);
+        if (code == null) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                BitReader reader = new BitReader(in);
+                if (reader.readBits(16) != MAGIC) {
+                    throw new IOException("corrupted table cache entry: " + file);
+                }
+                code = HuffmanCode.readTable(reader, HuffmanManager.ALPHABET_SIZE);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            remember(id, code);
+        }
+        touch(file);
+        return code;
+    }
+
+    // Written to a temporary file first, so a concurrent reader never sees half a table
+    public synchronized void put(String id, HuffmanCode code) throws IOException {
+        checkId(id);
+        Files.createDirectories(directory);
+        Path file = directory.resolve(id + EXTENSION);
+        Path temporary = Files.createTempFile(directory, id, ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            BitWriter writer = new BitWriter(out);
+            writer.writeBits(MAGIC, 16);
+            code.writeTable(writer);
+            writer.flush();
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        remember(id, code);
+        evict();
+    }
+
+    private void remember(String id, HuffmanCode code) {
+        loaded.put(id, code);
+        if (loaded.size() > capacity) {
+            loaded.remove(loaded.keySet().iterator().next());
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // A read-only cache still works, it just cannot track recency
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> tables = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path entry : entries) {
+                tables.add(entry);
+            }
+        }
+        if (tables.size() <= capacity) {
+            return;
+        }
+        tables.sort(Comparator.comparing(TableCache::lastModified));
+        for (Path table : tables.subList(0, tables.size() - capacity)) {
+            Files.deleteIfExists(table);
+            String name = table.getFileName().toString();
+            loaded.remove(name.substring(0, name.length() - EXTENSION.length()));
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Inputs and encode/decode calls shared by the tests: every codec is driven the way Main drives
+ * it, but on byte arrays and files under a temporary directory.
+ */
+final class Codecs {
+
+    static final int WORKERS = 2;
+    static final ExecutorService POOL = new ForkJoinPool(WORKERS);
+
+    private Codecs() {}
+
+    // Empty, one byte, and random and repetitive data spanning more than one 1 MB block
+    static Map<String, byte[]> inputs() {
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        inputs.put("empty", new byte[0]);
+        inputs.put("one byte", new byte[] { 'x' });
+        inputs.put("random", random(2_500_000, 42));
+        inputs.put("repetitive", repetitive(2_500_000, 7));
+        return inputs;
+    }
+
+    static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Runs of 1 to 300 equal bytes from a small alphabet, with some text-like stretches in between
+    static byte[] repetitive(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        int position = 0;
+        while (position < length) {
+            int run = Math.min(length - position, 1 + random.nextInt(300));
+            if (random.nextInt(4) == 0) {
+                for (int i = 0; i < run; i++) {
+                    data[position + i] = (byte)('a' + random.nextInt(26));
+                }
+            } else {
+                byte value = (byte)random.nextInt(8);
+                for (int i = 0; i < run; i++) {
+                    data[position + i] = value;
+                }
+            }
+            position += run;
+        }
+        return data;
+    }
+
+    interface Encoder {
+        void encode(MappedSource source, OutputStream out) throws IOException;
+    }
+
+    interface Decoder {
+        void decode(Path encoded, OutputStream out) throws IOException;
+    }
+
+    static final Encoder HUFFMAN = (source, out) -> {
+        HuffmanManager manager = new HuffmanManager(source, POOL, WORKERS, CodingListener.NONE);
+        manager.generateHuffmanCode();
+        manager.encodeToFile(out);
+    };
+
+    static final Encoder LIMITED_HUFFMAN = (source, out) -> {
+        HuffmanManager manager = new HuffmanManager(source, POOL, WORKERS, CodingListener.NONE);
+        manager.setMaxCodeLength(8);
+        manager.generateHuffmanCode();
+        manager.encodeToFile(out);
+    };
+
+    // A small sample misses byte values, so the code escapes them
+    static final Encoder SAMPLED_HUFFMAN = (source, out) -> {
+        HuffmanManager manager = new HuffmanManager(source, POOL, WORKERS, CodingListener.NONE,
+                0.001, FrequencyCounter.SampleMode.STRIDED);
+        manager.generateHuffmanCode();
+        manager.encodeToFile(out);
+    };
+
+    static final Encoder CONTEXT_HUFFMAN = (source, out) -> {
+        ContextHuffmanManager manager = new ContextHuffmanManager(source, POOL, WORKERS, CodingListener.NONE);
+        manager.generateHuffmanCodes();
+        manager.encodeToFile(out);
+    };
+
+    static final Encoder RUN_LENGTH = (source, out) -> new RLManager(source, CodingListener.NONE).encode(out);
+
+    static final Encoder ADAPTIVE = (source, out) ->
+            new AdaptiveManager(source, POOL, WORKERS, CodingListener.NONE).encodeToFile(out);
+
+    static final Decoder HUFFMAN_DECODER = (encoded, out) ->
+            HuffmanManager.decodeFile(encoded, out, POOL, WORKERS, CodingListener.NONE);
+
+    static final Decoder CONTEXT_HUFFMAN_DECODER = (encoded, out) ->
+            ContextHuffmanManager.decodeFile(encoded, out, POOL, WORKERS, CodingListener.NONE);
+
+    static final Decoder RUN_LENGTH_DECODER = (encoded, out) -> {
+        try (FileChannel in = FileChannel.open(encoded, StandardOpenOption.READ)) {
+            RLManager.decode(in, Channels.newChannel(out), CodingListener.NONE);
+        }
+    };
+
+    static final Decoder ADAPTIVE_DECODER = (encoded, out) ->
+            AdaptiveManager.decodeFile(encoded, out, POOL, WORKERS, CodingListener.NONE);
+
+    static Path encode(Encoder encoder, byte[] data, Path file) throws IOException {
+        try (MappedSource source = MappedSource.wrap(data);
+             OutputStream out = Files.newOutputStream(file)) {
+            encoder.encode(source, out);
+        }
+        return file;
+    }
+
+    static byte[] decode(Decoder decoder, Path encoded) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decoder.decode(encoded, out);
+        return out.toByteArray();
+    }
+
+    static byte[] encodeStream(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new StreamingHuffman(CodingListener.NONE).encode(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    static byte[] decodeStream(byte[] encoded) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingHuffman.decode(new ByteArrayInputStream(encoded), out, CodingListener.NONE);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,102 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Flips single bits of encoded files and expects every decode to fail with an IOException instead
+ * of returning wrong data.
+ */
+class CorruptionTest {
+
+    // Two blocks, so the index has more than one entry
+    private static final byte[] DATA = Codecs.repetitive(1_500_000, 11);
+
+    @TempDir
+    Path directory;
+
+    @TestFactory
+    List<DynamicTest> huffman() throws IOException {
+        return blockFormat("Huffman", Codecs.HUFFMAN, Codecs.HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> contextHuffman() throws IOException {
+        return blockFormat("order-1 Huffman", Codecs.CONTEXT_HUFFMAN, Codecs.CONTEXT_HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> adaptive() throws IOException {
+        return blockFormat("adaptive", Codecs.ADAPTIVE, Codecs.ADAPTIVE_DECODER);
+    }
+
+    @Test
+    void runLength() throws IOException {
+        byte[] encoded = Files.readAllBytes(Codecs.encode(Codecs.RUN_LENGTH, DATA, directory.resolve("rl.enc")));
+        List<Integer> positions = new ArrayList<>();
+        for (int position = 0; position < RLManager.HEADER_BYTES; position++) {
+            positions.add(position);
+        }
+        positions.add(RLManager.HEADER_BYTES + 1);
+        positions.add(encoded.length / 2);
+        for (int position = encoded.length - RLManager.TRAILER_BYTES; position < encoded.length; position++) {
+            positions.add(position);
+        }
+        for (int position : positions) {
+            Path corrupted = flip(encoded, position);
+            assertThrows(IOException.class, () -> Codecs.decode(Codecs.RUN_LENGTH_DECODER, corrupted),
+                    "bit flip at " + position);
+        }
+    }
+
+    /*
+     * Block containers end in the index and a footer that starts with the index offset; the first
+     * index entry gives the end of the header. Every header, index and footer byte is flipped, and
+     * a few bytes of each block.
+     */
+    private List<DynamicTest> blockFormat(String codec, Codecs.Encoder encoder, Codecs.Decoder decoder) throws IOException {
+        byte[] encoded = Files.readAllBytes(Codecs.encode(encoder, DATA, directory.resolve("original.enc")));
+        int footerOffset = encoded.length - BlockIndex.FOOTER_BYTES;
+        int indexOffset = (int)ByteBuffer.wrap(encoded, footerOffset, 8).getLong();
+        int dataOffset = (int)ByteBuffer.wrap(encoded, indexOffset, 8).getLong();
+
+        List<DynamicTest> tests = new ArrayList<>();
+        tests.add(flips(codec + ", header", encoded, 0, dataOffset, 1, decoder));
+        tests.add(flips(codec + ", blocks", encoded, dataOffset, indexOffset, (indexOffset - dataOffset) / 7, decoder));
+        tests.add(flips(codec + ", index", encoded, indexOffset, footerOffset, 1, decoder));
+        tests.add(flips(codec + ", footer", encoded, footerOffset, encoded.length, 1, decoder));
+        return tests;
+    }
+
+    // Decoding and opening for random access both fail for every flipped byte in [from, to)
+    private DynamicTest flips(String name, byte[] encoded, int from, int to, int step, Codecs.Decoder decoder) {
+        return DynamicTest.dynamicTest(name, () -> {
+            for (int position = from; position < to; position += step) {
+                Path corrupted = flip(encoded, position);
+                assertThrows(IOException.class, () -> Codecs.decode(decoder, corrupted), "bit flip at " + position);
+                assertThrows(IOException.class, () -> {
+                    try (SeekableReader reader = SeekableReader.open(corrupted, null)) {
+                        reader.read(0, (int)reader.length());
+                    }
+                }, "random access, bit flip at " + position);
+            }
+        });
+    }
+
+    private Path flip(byte[] encoded, int position) throws IOException {
+        byte[] corrupted = encoded.clone();
+        corrupted[position] ^= 0x10;
+        return Files.write(directory.resolve("corrupted.enc"), corrupted);
+    }
+}
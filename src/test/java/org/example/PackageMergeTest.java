@@ -0,0 +1,140 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class PackageMergeTest {
+
+    @Test
+    void lengthsStayWithinTheLimitAndFormACompleteCode() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 500; trial++) {
+            long[] frequencies = skewed(random, 2 + random.nextInt(299));
+            int present = presentSymbols(frequencies);
+            int maxLength = Math.max(minimumLength(present), 1 + random.nextInt(20));
+            int[] lengths = HuffmanManager.limitedCodeLengths(frequencies, maxLength);
+
+            for (int symbol = 0; symbol < frequencies.length; symbol++) {
+                if (frequencies[symbol] == 0) {
+                    assertEquals(0, lengths[symbol], "absent symbol " + symbol);
+                } else {
+                    assertTrue(lengths[symbol] >= 1 && lengths[symbol] <= maxLength,
+                            "symbol " + symbol + " got " + lengths[symbol] + " bits, limit " + maxLength);
+                }
+            }
+            assertTrue(HuffmanCode.isPrefixFree(lengths));
+            assertEquals(1.0, kraftSum(lengths), 1e-12, "an optimal code leaves no code word unused");
+        }
+    }
+
+    @Test
+    void matchesBruteForceOnSmallAlphabets() {
+        Random random = new Random(2);
+        for (int trial = 0; trial < 300; trial++) {
+            int n = 2 + random.nextInt(6);
+            long[] frequencies = skewed(random, n);
+            for (int maxLength = minimumLength(n); maxLength < n; maxLength++) {
+                int[] lengths = HuffmanManager.limitedCodeLengths(frequencies, maxLength);
+                assertEquals(bruteForceCost(frequencies, maxLength, new int[n], 0), cost(frequencies, lengths),
+                        "limit " + maxLength);
+            }
+        }
+    }
+
+    // Without a binding limit the result costs as much as an unconstrained Huffman code
+    @Test
+    void matchesHuffmanWhenTheLimitDoesNotBind() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            long[] frequencies = skewed(random, 2 + random.nextInt(255));
+            int[] huffman = HuffmanManager.codeLengths(frequencies, CodingListener.NONE);
+            int longest = 0;
+            for (int length : huffman) {
+                longest = Math.max(longest, length);
+            }
+            assertEquals(cost(frequencies, huffman), cost(frequencies, HuffmanManager.limitedCodeLengths(frequencies, longest)));
+            assertEquals(cost(frequencies, huffman), cost(frequencies, HuffmanManager.limitedCodeLengths(frequencies, 64)));
+        }
+    }
+
+    @Test
+    void edgeCases() {
+        assertArrayEquals(new int[4], HuffmanManager.limitedCodeLengths(new long[4], 8));
+        assertArrayEquals(new int[] { 0, 1, 0 }, HuffmanManager.limitedCodeLengths(new long[] { 0, 5, 0 }, 8));
+        assertArrayEquals(new int[] { 1, 1 }, HuffmanManager.limitedCodeLengths(new long[] { 1, 1_000_000 }, 1));
+        assertThrows(IllegalArgumentException.class, () -> HuffmanManager.limitedCodeLengths(new long[] { 1, 1, 1 }, 1));
+    }
+
+    // Fibonacci-like weights push an unconstrained code deep, so small limits bind
+    private static long[] skewed(Random random, int n) {
+        long[] frequencies = new long[n];
+        for (int symbol = 0; symbol < n; symbol++) {
+            switch (random.nextInt(4)) {
+                case 0 -> frequencies[symbol] = 0;
+                case 1 -> frequencies[symbol] = 1 + random.nextInt(10);
+                case 2 -> frequencies[symbol] = 1L << random.nextInt(30);
+                default -> frequencies[symbol] = 1 + random.nextInt(1_000_000);
+            }
+        }
+        // At least two symbols occur
+        frequencies[0] = Math.max(frequencies[0], 1);
+        frequencies[n - 1] = Math.max(frequencies[n - 1], 1);
+        return frequencies;
+    }
+
+    private static int presentSymbols(long[] frequencies) {
+        int present = 0;
+        for (long frequency : frequencies) {
+            if (frequency > 0) {
+                present++;
+            }
+        }
+        return present;
+    }
+
+    private static int minimumLength(int symbols) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(symbols - 1));
+    }
+
+    private static double kraftSum(int[] lengths) {
+        double sum = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                sum += Math.pow(2, -length);
+            }
+        }
+        return sum;
+    }
+
+    private static long cost(long[] frequencies, int[] lengths) {
+        long bits = 0;
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            bits += frequencies[symbol] * lengths[symbol];
+        }
+        return bits;
+    }
+
+    // Cheapest assignment of lengths 1..maxLength to the present symbols that satisfies Kraft
+    private static long bruteForceCost(long[] frequencies, int maxLength, int[] lengths, int symbol) {
+        if (symbol == frequencies.length) {
+            return kraftSum(lengths) <= 1 ? cost(frequencies, lengths) : Long.MAX_VALUE;
+        }
+        if (frequencies[symbol] == 0) {
+            lengths[symbol] = 0;
+            return bruteForceCost(frequencies, maxLength, lengths, symbol + 1);
+        }
+        long best = Long.MAX_VALUE;
+        for (int length = 1; length <= maxLength; length++) {
+            lengths[symbol] = length;
+            best = Math.min(best, bruteForceCost(frequencies, maxLength, lengths, symbol + 1));
+        }
+        lengths[symbol] = 0;
+        return best;
+    }
+}
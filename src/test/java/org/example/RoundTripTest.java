@@ -0,0 +1,108 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoundTripTest {
+
+    @TempDir
+    Path directory;
+
+    @TestFactory
+    List<DynamicTest> huffman() {
+        return roundTrips("Huffman", Codecs.HUFFMAN, Codecs.HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> limitedHuffman() {
+        return roundTrips("Huffman, 8-bit codes", Codecs.LIMITED_HUFFMAN, Codecs.HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> sampledHuffman() {
+        return roundTrips("sampled Huffman", Codecs.SAMPLED_HUFFMAN, Codecs.HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> contextHuffman() {
+        return roundTrips("order-1 Huffman", Codecs.CONTEXT_HUFFMAN, Codecs.CONTEXT_HUFFMAN_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> runLength() {
+        return roundTrips("run-length", Codecs.RUN_LENGTH, Codecs.RUN_LENGTH_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> adaptive() {
+        return roundTrips("adaptive", Codecs.ADAPTIVE, Codecs.ADAPTIVE_DECODER);
+    }
+
+    @TestFactory
+    List<DynamicTest> streamingHuffman() {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> input : Codecs.inputs().entrySet()) {
+            tests.add(DynamicTest.dynamicTest("streaming Huffman, " + input.getKey(), () ->
+                    assertArrayEquals(input.getValue(), Codecs.decodeStream(Codecs.encodeStream(input.getValue())))));
+        }
+        return tests;
+    }
+
+    // The cached table is trained on the first file and reused for a different one
+    @TestFactory
+    List<DynamicTest> cachedTable() {
+        TableCache cache = new TableCache(directory.resolve("tables"), 4);
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> input : Codecs.inputs().entrySet()) {
+            tests.add(DynamicTest.dynamicTest("cached table, " + input.getKey(), () -> {
+                Path encoded = Codecs.encode((source, out) -> {
+                    HuffmanManager manager = new HuffmanManager(source, Codecs.POOL, Codecs.WORKERS, CodingListener.NONE);
+                    manager.useCachedTable(cache, "shared");
+                    manager.encodeToFile(out);
+                }, input.getValue(), directory.resolve("cached.enc"));
+                assertArrayEquals(input.getValue(), Codecs.decode((file, out) -> HuffmanManager.decodeFile(file, out,
+                        Codecs.POOL, Codecs.WORKERS, CodingListener.NONE, cache), encoded));
+            }));
+        }
+        return tests;
+    }
+
+    // Encoding twice with one manager gives the same file
+    @TestFactory
+    List<DynamicTest> runLengthReuse() {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> input : Codecs.inputs().entrySet()) {
+            tests.add(DynamicTest.dynamicTest("run-length twice, " + input.getKey(), () -> {
+                try (MappedSource source = MappedSource.wrap(input.getValue())) {
+                    RLManager manager = new RLManager(source, CodingListener.NONE);
+                    ByteArrayOutputStream first = new ByteArrayOutputStream();
+                    ByteArrayOutputStream second = new ByteArrayOutputStream();
+                    manager.encode(first);
+                    manager.encode(second);
+                    assertArrayEquals(first.toByteArray(), second.toByteArray());
+                }
+            }));
+        }
+        return tests;
+    }
+
+    private List<DynamicTest> roundTrips(String codec, Codecs.Encoder encoder, Codecs.Decoder decoder) {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> input : Codecs.inputs().entrySet()) {
+            tests.add(DynamicTest.dynamicTest(codec + ", " + input.getKey(), () -> {
+                Path encoded = Codecs.encode(encoder, input.getValue(), directory.resolve("out.enc"));
+                assertArrayEquals(input.getValue(), Codecs.decode(decoder, encoded));
+            }));
+        }
+        return tests;
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+class SeekableReaderTest {
+
+    private static final byte[] DATA = Codecs.repetitive(3_300_000, 5);
+
+    @TempDir
+    Path directory;
+
+    @TestFactory
+    List<DynamicTest> randomRanges() {
+        return List.of(
+                DynamicTest.dynamicTest("Huffman", () -> randomRanges(Codecs.HUFFMAN)),
+                DynamicTest.dynamicTest("sampled Huffman", () -> randomRanges(Codecs.SAMPLED_HUFFMAN)),
+                DynamicTest.dynamicTest("order-1 Huffman", () -> randomRanges(Codecs.CONTEXT_HUFFMAN)),
+                DynamicTest.dynamicTest("adaptive", () -> randomRanges(Codecs.ADAPTIVE)));
+    }
+
+    // Reads that start at or run past the end are cut short, as documented on read
+    @Test
+    void rangesAtTheEnd() throws IOException {
+        Path encoded = Codecs.encode(Codecs.HUFFMAN, DATA, directory.resolve("end.enc"));
+        try (SeekableReader reader = SeekableReader.open(encoded, null)) {
+            assertEquals(DATA.length, reader.length());
+            assertArrayEquals(Arrays.copyOfRange(DATA, DATA.length - 10, DATA.length), reader.read(DATA.length - 10, 100));
+            assertEquals(0, reader.read(DATA.length, 5).length);
+            assertEquals(-1, reader.read(DATA.length, new byte[5], 0, 5));
+            assertEquals(0, reader.read(DATA.length, new byte[5], 0, 0));
+        }
+    }
+
+    @Test
+    void emptyFile() throws IOException {
+        Path encoded = Codecs.encode(Codecs.HUFFMAN, new byte[0], directory.resolve("empty.enc"));
+        try (SeekableReader reader = SeekableReader.open(encoded, null)) {
+            assertEquals(0, reader.length());
+            assertEquals(0, reader.read(0, 10).length);
+        }
+    }
+
+    // Ranges of every size, many crossing block boundaries, through a cache smaller than the file
+    private void randomRanges(Codecs.Encoder encoder) throws IOException {
+        Path encoded = Codecs.encode(encoder, DATA, directory.resolve("ranges.enc"));
+        Random random = new Random(9);
+        try (SeekableReader reader = SeekableReader.open(encoded, null, 2)) {
+            for (int i = 0; i < 300; i++) {
+                int offset = random.nextInt(DATA.length);
+                int length = random.nextInt(4) == 0 ? random.nextInt(2_500_000) : random.nextInt(5_000);
+                int end = Math.min(DATA.length, offset + length);
+                assertArrayEquals(Arrays.copyOfRange(DATA, offset, end), reader.read(offset, length),
+                        "range " + offset + ":" + length);
+            }
+            byte[] all = new byte[DATA.length + 7];
+            assertEquals(DATA.length, reader.read(0, all, 7, DATA.length));
+            assertArrayEquals(DATA, Arrays.copyOfRange(all, 7, all.length));
+        }
+    }
+}